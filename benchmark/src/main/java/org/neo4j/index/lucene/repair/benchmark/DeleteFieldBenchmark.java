@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.index.lucene.repair.IndexHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Removing a field from node documents through {@link IndexHandler}, one id
+ * per call and as one batch. The index is reset from a pristine copy before
+ * every iteration.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class DeleteFieldBenchmark
+{
+    private static final int BatchSize = 1000;
+
+    @Param( { "100000" } )
+    public int documents;
+
+    private File root;
+    private File pristine;
+    private File work;
+    private IndexHandler handler;
+    private int nextId;
+
+    @Setup
+    public void createIndex() throws IOException
+    {
+        root = new File( System.getProperty( "java.io.tmpdir" ), "delete-field-benchmark" );
+        pristine = SyntheticIndex.create( new File( root, "pristine" ), documents, 0, 10 );
+        work = new File( root, "work" );
+    }
+
+    @Setup( Level.Iteration )
+    public void resetIndex() throws Exception
+    {
+        SyntheticIndex.copy( pristine, work );
+        handler = new IndexHandler( work );
+        nextId = 0;
+    }
+
+    @Benchmark
+    public void deleteFieldFromNodeDocument() throws Exception
+    {
+        handler.deleteFieldFromNodeDocument( nextId(), "name" );
+    }
+
+    @Benchmark
+    public int deleteFieldFromNodeDocumentsBatch() throws Exception
+    {
+        List<Long> ids = new ArrayList<Long>( BatchSize );
+        for ( int i = 0; i < BatchSize; i++ )
+        {
+            ids.add( nextId() );
+        }
+        return handler.deleteFieldFromNodeDocuments( ids, "name" );
+    }
+
+    private long nextId()
+    {
+        long id = nextId;
+        nextId = ( nextId + 1 ) % documents;
+        return id;
+    }
+
+    @TearDown
+    public void deleteIndexes()
+    {
+        SyntheticIndex.deleteRecursively( root );
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.neo4j.index.lucene.repair.IndexRepair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full scans of a synthetic index with {@link IndexRepair#scan()}. Every
+ * invocation works on a fresh copy of the index, so that runs which delete
+ * damaged documents do not change what the next run sees. Run with -prof gc
+ * for the allocation rate.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class ScanBenchmark
+{
+    @Param( { "1000000" } )
+    public int documents;
+
+    @Param( { "0.0", "0.01" } )
+    public double damageRate;
+
+    @Param( { "false", "true" } )
+    public boolean deleteDamaged;
+
+    @Param( { "false", "true" } )
+    public boolean detectFromPostings;
+
+    @Param( { "1" } )
+    public int scanThreads;
+
+    private File root;
+    private File pristine;
+    private File work;
+    private IndexRepair repair;
+
+    @Setup
+    public void createIndex() throws IOException
+    {
+        // per document logging would dominate the damaged runs
+        Logger.getLogger( IndexRepair.class.getName() ).setLevel( Level.WARNING );
+        root = new File( System.getProperty( "java.io.tmpdir" ), "scan-benchmark" );
+        pristine = SyntheticIndex.create( new File( root, "pristine" ), documents, damageRate, 10 );
+        work = new File( root, "work" );
+    }
+
+    @Setup( org.openjdk.jmh.annotations.Level.Invocation )
+    public void openRepair() throws IOException
+    {
+        SyntheticIndex.copy( pristine, work );
+        repair = new IndexRepair( work );
+        repair.setDeleteDamaged( deleteDamaged );
+        repair.setDetectFromPostings( detectFromPostings );
+        repair.setScanThreads( scanThreads );
+        repair.setLogDamagedFields( false );
+    }
+
+    @Benchmark
+    public int scan() throws IOException
+    {
+        repair.scan();
+        return repair.getDamagedCount();
+    }
+
+    @TearDown
+    public void deleteIndexes()
+    {
+        SyntheticIndex.deleteRecursively( root );
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.neo4j.index.lucene.repair.IndexPaths;
+
+/**
+ * Builds node indexes laid out the way {@link IndexPaths} expects, with
+ * documents shaped like the ones the Neo4j lucene index writes, and a given
+ * fraction of them missing their _id_ field.
+ */
+public class SyntheticIndex
+{
+    public static final String IndexName = "synthetic";
+
+    private SyntheticIndex()
+    {
+    }
+
+    /**
+     * Creates an index named {@link #IndexName} under storeDir with the
+     * given number of documents, for node ids 0..documents-1.
+     *
+     * @return the index directory.
+     */
+    public static File create( File storeDir, int documents, double damageRate, int segments ) throws IOException
+    {
+        File indexDir = IndexPaths.fromRoot( storeDir ).forNode( IndexName );
+        deleteRecursively( indexDir );
+        indexDir.mkdirs();
+        IndexWriter writer = new IndexWriter( FSDirectory.open( indexDir ), new IndexWriterConfig( Version.LUCENE_35,
+                new WhitespaceAnalyzer( Version.LUCENE_35 ) ).setRAMBufferSizeMB( 64 ) );
+        Random random = new Random( 42 );
+        int perSegment = Math.max( 1, documents / Math.max( 1, segments ) );
+        try
+        {
+            for ( int i = 0; i < documents; i++ )
+            {
+                Document doc = new Document();
+                if ( random.nextDouble() >= damageRate )
+                {
+                    doc.add( new Field( "_id_", Integer.toString( i ), Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+                }
+                doc.add( new Field( "key" + ( i % 10 ), "value" + i, Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+                doc.add( new Field( "name", "some name for entity " + i, Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+                writer.addDocument( doc );
+                if ( ( i + 1 ) % perSegment == 0 )
+                {
+                    writer.commit();
+                }
+            }
+            writer.commit();
+        }
+        finally
+        {
+            writer.close();
+        }
+        return indexDir;
+    }
+
+    /**
+     * Replaces the contents of target with a copy of source, so that a
+     * benchmark that changes an index can start over from a pristine one.
+     */
+    public static void copy( File source, File target ) throws IOException
+    {
+        deleteRecursively( target );
+        target.mkdirs();
+        for ( File file : source.listFiles() )
+        {
+            FileInputStream in = new FileInputStream( file );
+            FileOutputStream out = new FileOutputStream( new File( target, file.getName() ) );
+            try
+            {
+                FileChannel channel = in.getChannel();
+                channel.transferTo( 0, channel.size(), out.getChannel() );
+            }
+            finally
+            {
+                out.close();
+                in.close();
+            }
+        }
+    }
+
+    public static void deleteRecursively( File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                deleteRecursively( child );
+            }
+        }
+        file.delete();
+    }
+}
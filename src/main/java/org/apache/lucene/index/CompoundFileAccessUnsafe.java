@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.lucene.index;
+
+import java.io.IOException;
+
+import org.apache.lucene.store.Directory;
+
+public class CompoundFileAccessUnsafe
+{
+    /**
+     * @return the length of a file inside a compound file (.cfs or .cfx), or
+     *         0 if it has no such file.
+     */
+    public static long fileLength( Directory directory, String compoundFile, String file ) throws IOException
+    {
+        CompoundFileReader reader = new CompoundFileReader( directory, compoundFile );
+        try
+        {
+            return reader.fileExists( file ) ? reader.fileLength( file ) : 0;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
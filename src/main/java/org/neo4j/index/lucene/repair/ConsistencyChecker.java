@@ -0,0 +1,387 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+import org.neo4j.kernel.EmbeddedReadOnlyGraphDatabase;
+
+/**
+ * Checks that the key/value pairs of the indexes of a store are still the
+ * properties of the entities they point to, for indexes whose values were
+ * also set as properties. Every mismatch is written to a
+ * {@link DamageReportWriter} as it is found, with the kind of mismatch in
+ * place of the segment.
+ * <p>
+ * One thread per index reads the documents and hands them out in blocks to a
+ * pool of workers. Each worker sorts its block by entity id before looking
+ * the entities up, so that store reads within a block go front to back. The
+ * database must not be running, it is opened read only.
+ */
+public class ConsistencyChecker
+{
+    private static final Logger log = Logger.getLogger( ConsistencyChecker.class.getName() );
+    private static final String IdField = "_id_";
+    private static final int BlockSize = 4096;
+
+    public enum Mismatch
+    {
+        /**
+         * The entity the document points to does not exist.
+         */
+        MISSING_ENTITY,
+        /**
+         * The entity has no property with the key.
+         */
+        MISSING_PROPERTY,
+        /**
+         * The entity has a different value for the key.
+         */
+        STALE_VALUE;
+    }
+
+    private final File storeDir;
+    private final Set<String> keys;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private DamageReportWriter report;
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLongArray mismatches = new AtomicLongArray( Mismatch.values().length );
+
+    /**
+     * @param keys the keys to check, or an empty collection to check all of
+     *            them. Only keys that were also set as properties make sense.
+     */
+    public ConsistencyChecker( File storeDir, Collection<String> keys )
+    {
+        this.storeDir = storeDir;
+        this.keys = new LinkedHashSet<String>( keys );
+    }
+
+    public void setThreads( int threads )
+    {
+        if ( threads < 1 )
+        {
+            throw new IllegalArgumentException( "Need at least one worker thread, got " + threads );
+        }
+        this.threads = threads;
+    }
+
+    public void setReportWriter( DamageReportWriter report )
+    {
+        this.report = report;
+    }
+
+    /**
+     * Checks all node and relationship indexes of the store.
+     */
+    public void check() throws IOException
+    {
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        GraphDatabaseService db = new EmbeddedReadOnlyGraphDatabase( storeDir.getAbsolutePath() );
+        try
+        {
+            for ( File index : paths.nodeIndexes() )
+            {
+                check( db, index, IndexTypeEnum.Node );
+            }
+            for ( File index : paths.relationshipIndexes() )
+            {
+                check( db, index, IndexTypeEnum.Relationship );
+            }
+        }
+        finally
+        {
+            db.shutdown();
+        }
+        log.info( "Checked " + checked.get() + " values, " + getMismatchCount() + " mismatches" );
+    }
+
+    /**
+     * @return the number of key/value pairs compared to the store.
+     */
+    public long getCheckedCount()
+    {
+        return checked.get();
+    }
+
+    public long getMismatchCount()
+    {
+        long total = 0;
+        for ( int i = 0; i < mismatches.length(); i++ )
+        {
+            total += mismatches.get( i );
+        }
+        return total;
+    }
+
+    public long getMismatchCount( Mismatch kind )
+    {
+        return mismatches.get( kind.ordinal() );
+    }
+
+    private void check( GraphDatabaseService db, File index, IndexTypeEnum type ) throws IOException
+    {
+        long before = checked.get();
+        IndexReader reader = IndexReader.open( FSDirectory.open( index ), true );
+        // a bounded queue and running overflow in the reading thread keep at
+        // most a few blocks in memory
+        ThreadPoolExecutor workers = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>( threads * 2 ), new ThreadPoolExecutor.CallerRunsPolicy() );
+        List<Future<Void>> blocks = new ArrayList<Future<Void>>();
+        try
+        {
+            List<Entry> block = new ArrayList<Entry>( BlockSize );
+            for ( int i = 0; i < reader.maxDoc(); i++ )
+            {
+                if ( reader.isDeleted( i ) )
+                {
+                    continue;
+                }
+                Entry entry = entryFor( i, reader.document( i ) );
+                if ( entry == null )
+                {
+                    continue;
+                }
+                block.add( entry );
+                if ( block.size() == BlockSize )
+                {
+                    blocks.add( workers.submit( new BlockCheck( db, index, type, block ) ) );
+                    block = new ArrayList<Entry>( BlockSize );
+                }
+            }
+            if ( !block.isEmpty() )
+            {
+                blocks.add( workers.submit( new BlockCheck( db, index, type, block ) ) );
+            }
+            for ( Future<Void> future : blocks )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while checking " + index.getAbsolutePath(), e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Failed to check " + index.getAbsolutePath(), e.getCause() );
+        }
+        finally
+        {
+            workers.shutdownNow();
+            reader.close();
+        }
+        log.info( "Checked " + ( checked.get() - before ) + " values of " + index.getAbsolutePath() );
+    }
+
+    /**
+     * @return the id and the checked key/values of the document, or null if
+     *         it has none, or no id to check them against.
+     */
+    private Entry entryFor( int docId, Document doc )
+    {
+        Fieldable idField = doc.getFieldable( IdField );
+        if ( idField == null )
+        {
+            return null;
+        }
+        long id;
+        try
+        {
+            id = Long.parseLong( idField.stringValue() );
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        for ( Fieldable field : doc.getFields() )
+        {
+            String name = field.name();
+            if ( ( name.startsWith( "_" ) && name.endsWith( "_" ) ) || field.stringValue() == null )
+            {
+                continue;
+            }
+            if ( keys.isEmpty() || keys.contains( name ) )
+            {
+                names.add( name );
+                values.add( field.stringValue() );
+            }
+        }
+        return names.isEmpty() ? null : new Entry( id, docId, names.toArray( new String[names.size()] ),
+                values.toArray( new String[values.size()] ) );
+    }
+
+    private static boolean matches( Object property, String indexed )
+    {
+        if ( property.getClass().isArray() )
+        {
+            for ( int i = 0; i < Array.getLength( property ); i++ )
+            {
+                if ( indexed.equals( String.valueOf( Array.get( property, i ) ) ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return indexed.equals( property.toString() );
+    }
+
+    private static String describe( Object property )
+    {
+        if ( !property.getClass().isArray() )
+        {
+            return property.toString();
+        }
+        StringBuilder result = new StringBuilder( "[" );
+        for ( int i = 0; i < Array.getLength( property ); i++ )
+        {
+            result.append( i == 0 ? "" : ", " ).append( Array.get( property, i ) );
+        }
+        return result.append( "]" ).toString();
+    }
+
+    private static class Entry implements Comparable<Entry>
+    {
+        private final long id;
+        private final int docId;
+        private final String[] keys;
+        private final String[] values;
+
+        Entry( long id, int docId, String[] keys, String[] values )
+        {
+            this.id = id;
+            this.docId = docId;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public int compareTo( Entry other )
+        {
+            return id < other.id ? -1 : ( id == other.id ? 0 : 1 );
+        }
+    }
+
+    private class BlockCheck implements Callable<Void>
+    {
+        private final GraphDatabaseService db;
+        private final File index;
+        private final IndexTypeEnum type;
+        private final List<Entry> block;
+
+        BlockCheck( GraphDatabaseService db, File index, IndexTypeEnum type, List<Entry> block )
+        {
+            this.db = db;
+            this.index = index;
+            this.type = type;
+            this.block = block;
+        }
+
+        @Override
+        public Void call() throws IOException
+        {
+            Entry[] entries = block.toArray( new Entry[block.size()] );
+            Arrays.sort( entries );
+            for ( Entry entry : entries )
+            {
+                PropertyContainer entity;
+                try
+                {
+                    entity = type == IndexTypeEnum.Node ? db.getNodeById( entry.id ) : db
+                            .getRelationshipById( entry.id );
+                }
+                catch ( NotFoundException e )
+                {
+                    entity = null;
+                }
+                for ( int i = 0; i < entry.keys.length; i++ )
+                {
+                    checked.incrementAndGet();
+                    Object property = entity == null ? null : entity.getProperty( entry.keys[i], null );
+                    if ( entity == null )
+                    {
+                        mismatch( Mismatch.MISSING_ENTITY, entry, i, null );
+                    }
+                    else if ( property == null )
+                    {
+                        mismatch( Mismatch.MISSING_PROPERTY, entry, i, null );
+                    }
+                    else if ( !matches( property, entry.values[i] ) )
+                    {
+                        mismatch( Mismatch.STALE_VALUE, entry, i, property );
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void mismatch( Mismatch kind, Entry entry, int i, Object property ) throws IOException
+        {
+            mismatches.incrementAndGet( kind.ordinal() );
+            if ( report == null )
+            {
+                return;
+            }
+            Document doc = new Document();
+            doc.add( new Field( IdField, Long.toString( entry.id ), Field.Store.YES, Field.Index.NO ) );
+            doc.add( new Field( "key", entry.keys[i], Field.Store.YES, Field.Index.NO ) );
+            doc.add( new Field( "index_value", entry.values[i], Field.Store.YES, Field.Index.NO ) );
+            if ( property != null )
+            {
+                doc.add( new Field( "store_value", describe( property ), Field.Store.YES, Field.Index.NO ) );
+            }
+            report.report( index, kind.name().toLowerCase(), entry.docId, doc );
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+
+/**
+ * Writes one machine readable record per damaged document. Records are handed
+ * over through a bounded queue to a background thread that formats and
+ * writes them, so scanning threads only pay for copying the field values.
+ * One writer can be shared by any number of {@link IndexRepair}s.
+ */
+public class DamageReportWriter
+{
+    public enum Format
+    {
+        JSONL,
+        CSV;
+    }
+
+    private static final Record EndOfReport = new Record( null, null, -1, null, null );
+
+    private final Format format;
+    private final Writer out;
+    private final BlockingQueue<Record> queue;
+    private final Thread worker;
+    private volatile IOException failure;
+
+    public DamageReportWriter( File file, Format format ) throws IOException
+    {
+        this( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ), format );
+    }
+
+    public DamageReportWriter( Writer out, Format format ) throws IOException
+    {
+        this.format = format;
+        this.out = new BufferedWriter( out, 64 * 1024 );
+        this.queue = new ArrayBlockingQueue<Record>( 8192 );
+        if ( format == Format.CSV )
+        {
+            this.out.write( "index,segment,doc,fields\n" );
+        }
+        this.worker = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        }, "damage-report-writer" );
+        this.worker.setDaemon( true );
+        this.worker.start();
+    }
+
+    public void report( File index, String segment, int docId, Document doc ) throws IOException
+    {
+        if ( failure != null )
+        {
+            throw failure;
+        }
+        List<Fieldable> fields = doc.getFields();
+        String[] names = new String[fields.size()];
+        String[] values = new String[fields.size()];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            names[i] = fields.get( i ).name();
+            values[i] = fields.get( i ).stringValue();
+        }
+        put( new Record( index.getAbsolutePath(), segment, docId, names, values ) );
+    }
+
+    /**
+     * Waits for all reported records to be written and closes the report.
+     */
+    public void close() throws IOException
+    {
+        put( EndOfReport );
+        try
+        {
+            worker.join();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while closing damage report", e );
+        }
+        out.close();
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+    private void put( Record record ) throws IOException
+    {
+        try
+        {
+            queue.put( record );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while reporting damaged document", e );
+        }
+    }
+
+    private void drain()
+    {
+        try
+        {
+            while ( true )
+            {
+                Record record = queue.take();
+                if ( record == EndOfReport )
+                {
+                    break;
+                }
+                if ( failure == null )
+                {
+                    write( record );
+                }
+            }
+            out.flush();
+        }
+        catch ( InterruptedException e )
+        {
+            failure = new IOException( "Damage report writer was interrupted", e );
+        }
+        catch ( IOException e )
+        {
+            failure = e;
+            // keep draining so that reporting threads never block on a full queue
+            drainAfterFailure();
+        }
+    }
+
+    private void drainAfterFailure()
+    {
+        try
+        {
+            while ( queue.take() != EndOfReport )
+            {
+                // discard
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write( Record record ) throws IOException
+    {
+        StringBuilder line = new StringBuilder( 128 );
+        switch ( format )
+        {
+        case JSONL:
+            line.append( "{\"index\":" );
+            json( line, record.index );
+            line.append( ",\"segment\":" );
+            json( line, record.segment );
+            line.append( ",\"doc\":" ).append( record.docId ).append( ",\"fields\":{" );
+            for ( int i = 0; i < record.names.length; i++ )
+            {
+                if ( i > 0 )
+                {
+                    line.append( ',' );
+                }
+                json( line, record.names[i] );
+                line.append( ':' );
+                json( line, record.values[i] );
+            }
+            line.append( "}}" );
+            break;
+        case CSV:
+            StringBuilder fields = new StringBuilder();
+            for ( int i = 0; i < record.names.length; i++ )
+            {
+                if ( i > 0 )
+                {
+                    fields.append( ';' );
+                }
+                fields.append( record.names[i] ).append( '=' ).append( record.values[i] );
+            }
+            csv( line, record.index );
+            line.append( ',' );
+            csv( line, record.segment );
+            line.append( ',' ).append( record.docId ).append( ',' );
+            csv( line, fields.toString() );
+            break;
+        default:
+            throw new IllegalStateException( "Unknown report format " + format );
+        }
+        line.append( '\n' );
+        out.write( line.toString() );
+    }
+
+    static void json( StringBuilder target, String value )
+    {
+        if ( value == null )
+        {
+            target.append( "null" );
+            return;
+        }
+        target.append( '"' );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            switch ( c )
+            {
+            case '"':
+                target.append( "\\\"" );
+                break;
+            case '\\':
+                target.append( "\\\\" );
+                break;
+            case '\n':
+                target.append( "\\n" );
+                break;
+            case '\r':
+                target.append( "\\r" );
+                break;
+            case '\t':
+                target.append( "\\t" );
+                break;
+            default:
+                if ( c < 0x20 )
+                {
+                    target.append( String.format( "\\u%04x", (int) c ) );
+                }
+                else
+                {
+                    target.append( c );
+                }
+            }
+        }
+        target.append( '"' );
+    }
+
+    private static void csv( StringBuilder target, String value )
+    {
+        if ( value == null )
+        {
+            return;
+        }
+        target.append( '"' ).append( value.replace( "\"", "\"\"" ) ).append( '"' );
+    }
+
+    private static class Record
+    {
+        private final String index;
+        private final String segment;
+        private final int docId;
+        private final String[] names;
+        private final String[] values;
+
+        Record( String index, String segment, int docId, String[] names, String[] values )
+        {
+            this.index = index;
+            this.segment = segment;
+            this.docId = docId;
+            this.names = names;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Estimates the share of documents missing their _id_ from a sample instead
+ * of reading every document, to decide whether an index needs a full
+ * {@link IndexRepair#scan()} at all. The sample is spread over the segments in
+ * proportion to their size, so new small segments, where damage from an
+ * unclean shutdown usually is, are not left out. Within a segment documents
+ * are taken either one from each of equally sized strata (the default) or
+ * uniformly at random. Deleted documents that are drawn are not counted.
+ * <p>
+ * The interval is a Wilson score interval with a finite population
+ * correction, so it narrows to the exact rate as the sample approaches the
+ * whole index.
+ */
+public class DamageSampler
+{
+    private static final Logger log = Logger.getLogger( DamageSampler.class.getName() );
+    private static final String IdField = "_id_";
+    private static final FieldSelector IdOnly = new FieldSelector()
+    {
+        @Override
+        public FieldSelectorResult accept( String fieldName )
+        {
+            return IdField.equals( fieldName ) ? FieldSelectorResult.LOAD_AND_BREAK : FieldSelectorResult.NO_LOAD;
+        }
+    };
+
+    private final File dir;
+    private int sampleSize = 10000;
+    private double confidence = 0.95;
+    private boolean stratified = true;
+    private Random random = new Random();
+    private DirectoryStrategy strategy = DirectoryStrategy.FS;
+    private IoRateLimiter limiter;
+
+    public DamageSampler( File indexDir )
+    {
+        this.dir = indexDir;
+    }
+
+    /**
+     * @see IndexRepair#IndexRepair(File, DirectoryStrategy, IoRateLimiter)
+     */
+    public void setDirectoryStrategy( DirectoryStrategy strategy, IoRateLimiter limiter )
+    {
+        this.strategy = strategy;
+        this.limiter = limiter;
+    }
+
+    /**
+     * @param sampleSize the number of documents to read over the whole index,
+     *            default 10000.
+     */
+    public void setSampleSize( int sampleSize )
+    {
+        if ( sampleSize < 1 )
+        {
+            throw new IllegalArgumentException( "Need a sample of at least one document, got " + sampleSize );
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param confidence the confidence level of the interval, between 0 and 1
+     *            exclusive, default 0.95.
+     */
+    public void setConfidence( double confidence )
+    {
+        if ( confidence <= 0 || confidence >= 1 )
+        {
+            throw new IllegalArgumentException( "Confidence must be between 0 and 1, got " + confidence );
+        }
+        this.confidence = confidence;
+    }
+
+    public void setStratified( boolean stratified )
+    {
+        this.stratified = stratified;
+    }
+
+    /**
+     * Makes the sample repeatable.
+     */
+    public void setSeed( long seed )
+    {
+        this.random = new Random( seed );
+    }
+
+    public Estimate estimate() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        IndexReader reader = IndexReader.open( strategy.open( dir, limiter ), true );
+        try
+        {
+            int maxDoc = reader.maxDoc();
+            int sampled = 0;
+            int damaged = 0;
+            for ( ScanRange segment : ScanRange.segmentsOf( reader ) )
+            {
+                int count = maxDoc <= sampleSize ? segment.size() : (int) Math.max( 1, Math.round( sampleSize
+                        * (double) segment.size() / maxDoc ) );
+                for ( int docId : sample( segment, Math.min( count, segment.size() ) ) )
+                {
+                    if ( reader.isDeleted( docId ) )
+                    {
+                        continue;
+                    }
+                    sampled++;
+                    if ( reader.document( docId, IdOnly ).getFieldable( IdField ) == null )
+                    {
+                        damaged++;
+                    }
+                }
+            }
+            Estimate estimate = new Estimate( reader.numDocs(), sampled, damaged, confidence );
+            log.info( "Sampled " + dir.getAbsolutePath() + " in " + ( System.currentTimeMillis() - start ) + " ms, "
+                      + estimate );
+            return estimate;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return count distinct document ids of the segment, ascending so that
+     *         stored fields are read front to back.
+     */
+    private int[] sample( ScanRange segment, int count )
+    {
+        int[] result = new int[count];
+        if ( count == segment.size() )
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                result[i] = segment.getStart() + i;
+            }
+        }
+        else if ( stratified )
+        {
+            double width = segment.size() / (double) count;
+            for ( int i = 0; i < count; i++ )
+            {
+                result[i] = segment.getStart() + (int) ( i * width + random.nextDouble() * width );
+            }
+        }
+        else
+        {
+            // Floyd's algorithm, count distinct offsets without a bit per document
+            Set<Integer> chosen = new HashSet<Integer>();
+            for ( int j = segment.size() - count; j < segment.size(); j++ )
+            {
+                int offset = random.nextInt( j + 1 );
+                chosen.add( chosen.contains( offset ) ? j : offset );
+            }
+            int i = 0;
+            for ( int offset : chosen )
+            {
+                result[i++] = segment.getStart() + offset;
+            }
+            Arrays.sort( result );
+        }
+        return result;
+    }
+
+    /**
+     * @return the z value with the given probability above it under the
+     *         standard normal distribution, within 4.5e-4 (Abramowitz and
+     *         Stegun 26.2.23).
+     */
+    static double upperQuantile( double p )
+    {
+        double t = Math.sqrt( -2 * Math.log( p ) );
+        return t - ( 2.515517 + 0.802853 * t + 0.010328 * t * t )
+                   / ( 1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t );
+    }
+
+    public static class Estimate
+    {
+        private final int liveDocs;
+        private final int sampled;
+        private final int damaged;
+        private final double confidence;
+        private final double lower;
+        private final double upper;
+
+        Estimate( int liveDocs, int sampled, int damaged, double confidence )
+        {
+            this.liveDocs = liveDocs;
+            this.sampled = sampled;
+            this.damaged = damaged;
+            this.confidence = confidence;
+            if ( sampled == 0 )
+            {
+                lower = 0;
+                upper = liveDocs == 0 ? 0 : 1;
+                return;
+            }
+            double p = damaged / (double) sampled;
+            double correction = liveDocs > 1 ? Math.max( 0, ( liveDocs - sampled ) / (double) ( liveDocs - 1 ) ) : 0;
+            double z = upperQuantile( ( 1 - confidence ) / 2 );
+            double z2 = z * z * correction;
+            double denominator = 1 + z2 / sampled;
+            double center = ( p + z2 / ( 2 * sampled ) ) / denominator;
+            double halfWidth = Math.sqrt( z2 * ( p * ( 1 - p ) / sampled + z2 / ( 4d * sampled * sampled ) ) )
+                               / denominator;
+            lower = Math.max( 0, center - halfWidth );
+            upper = Math.min( 1, center + halfWidth );
+        }
+
+        public int getLiveDocs()
+        {
+            return liveDocs;
+        }
+
+        public int getSampled()
+        {
+            return sampled;
+        }
+
+        public int getDamaged()
+        {
+            return damaged;
+        }
+
+        /**
+         * @return the share of damaged documents in the sample.
+         */
+        public double getRate()
+        {
+            return sampled == 0 ? 0 : damaged / (double) sampled;
+        }
+
+        public double getLower()
+        {
+            return lower;
+        }
+
+        public double getUpper()
+        {
+            return upper;
+        }
+
+        public double getConfidence()
+        {
+            return confidence;
+        }
+
+        /**
+         * @return the estimated number of damaged documents in the index.
+         */
+        public long getEstimatedDamaged()
+        {
+            return Math.round( getRate() * liveDocs );
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(
+                    "%d of %d sampled documents damaged, %.4f%% (%.4f%% to %.4f%% at %.0f%%), about %d of %d",
+                    damaged, sampled, getRate() * 100, lower * 100, upper * 100, confidence * 100,
+                    getEstimatedDamaged(), liveDocs );
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+
+/**
+ * Writes the stored fields of damaged documents to a file as they are found,
+ * so that their contents are kept without holding them on the heap. Every
+ * record is the document id, the number of fields and then the name and
+ * string value of each field, as length prefixed UTF-8.
+ */
+public class DamagedDocumentSpill
+{
+    private static final String Encoding = "UTF-8";
+
+    private final File file;
+    private final DataOutputStream out;
+
+    public DamagedDocumentSpill( File file ) throws IOException
+    {
+        this.file = file;
+        this.out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 64 * 1024 ) );
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public synchronized void write( int docId, Document doc ) throws IOException
+    {
+        List<Fieldable> fields = doc.getFields();
+        out.writeInt( docId );
+        out.writeInt( fields.size() );
+        for ( Fieldable field : fields )
+        {
+            writeString( field.name() );
+            writeString( field.stringValue() );
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        out.close();
+    }
+
+    private void writeString( String value ) throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeInt( -1 );
+            return;
+        }
+        byte[] bytes = value.getBytes( Encoding );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    public interface Visitor
+    {
+        void visit( int docId, Document doc );
+    }
+
+    /**
+     * Reads back a spill file one document at a time, in the order they were
+     * written.
+     */
+    public static void replay( File file, Visitor visitor ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+        try
+        {
+            while ( true )
+            {
+                int docId;
+                try
+                {
+                    docId = in.readInt();
+                }
+                catch ( EOFException e )
+                {
+                    return;
+                }
+                int fieldCount = in.readInt();
+                Document doc = new Document();
+                for ( int i = 0; i < fieldCount; i++ )
+                {
+                    String name = readString( in );
+                    String value = readString( in );
+                    doc.add( new Field( name, value == null ? "" : value, Field.Store.YES, Field.Index.NO ) );
+                }
+                visitor.visit( docId, doc );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        int length = in.readInt();
+        if ( length == -1 )
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        return new String( bytes, Encoding );
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+/**
+ * How the files of an index are read. Which one is fastest depends on the
+ * platform, the size of the index compared to memory and the disks, so it is
+ * worth measuring each on the host the repair runs on, see
+ * {@link MeteredDirectory#getBytesRead()}.
+ */
+public enum DirectoryStrategy
+{
+    /**
+     * Whatever {@link FSDirectory#open(File)} picks for the platform.
+     */
+    FS
+    {
+        @Override
+        Directory open( File indexDir ) throws IOException
+        {
+            return FSDirectory.open( indexDir );
+        }
+    },
+    /**
+     * Memory maps the files, no copying into buffers at all.
+     */
+    MMAP
+    {
+        @Override
+        Directory open( File indexDir ) throws IOException
+        {
+            return new MMapDirectory( indexDir );
+        }
+    },
+    /**
+     * Positional reads through NIO channels, no locking between threads
+     * reading the same file.
+     */
+    NIO
+    {
+        @Override
+        Directory open( File indexDir ) throws IOException
+        {
+            return new NIOFSDirectory( indexDir );
+        }
+    },
+    /**
+     * Plain file reads through big buffers, so that a front to back scan
+     * makes few large reads the operating system can read ahead for.
+     */
+    SEQUENTIAL
+    {
+        @Override
+        Directory open( File indexDir ) throws IOException
+        {
+            return new SimpleFSDirectory( indexDir );
+        }
+
+        @Override
+        int readBufferSize()
+        {
+            return 1024 * 1024;
+        }
+    };
+
+    abstract Directory open( File indexDir ) throws IOException;
+
+    /**
+     * @return the buffer size to open inputs with, or 0 for the default of
+     *         the directory.
+     */
+    int readBufferSize()
+    {
+        return 0;
+    }
+
+    /**
+     * Opens the index directory with this strategy, counting the bytes read
+     * and, if a limiter is given, throttling reads to its rate.
+     */
+    public MeteredDirectory open( File indexDir, IoRateLimiter limiter ) throws IOException
+    {
+        return new MeteredDirectory( open( indexDir ), readBufferSize(), limiter );
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+
+/**
+ * A change applied to every live document of an index by a
+ * {@link TransformPipeline}.
+ */
+public interface DocumentTransform
+{
+    /**
+     * Changes the document in place.
+     *
+     * @return true if the document was changed and needs to be written back.
+     */
+    boolean transform( Document document );
+
+    /**
+     * Commonly needed transforms.
+     */
+    public static final class Transforms
+    {
+        private Transforms()
+        {
+        }
+
+        public static DocumentTransform dropField( final String name )
+        {
+            return new DocumentTransform()
+            {
+                @Override
+                public boolean transform( Document document )
+                {
+                    if ( document.getFieldable( name ) == null )
+                    {
+                        return false;
+                    }
+                    document.removeFields( name );
+                    return true;
+                }
+            };
+        }
+
+        public static DocumentTransform renameField( final String from, final String to )
+        {
+            return new DocumentTransform()
+            {
+                @Override
+                public boolean transform( Document document )
+                {
+                    Fieldable[] fields = document.getFieldables( from );
+                    if ( fields.length == 0 )
+                    {
+                        return false;
+                    }
+                    document.removeFields( from );
+                    for ( Fieldable field : fields )
+                    {
+                        document.add( copy( field, to, field.stringValue() ) );
+                    }
+                    return true;
+                }
+            };
+        }
+
+        public static DocumentTransform lowerCaseValues( final String name )
+        {
+            return new DocumentTransform()
+            {
+                @Override
+                public boolean transform( Document document )
+                {
+                    Fieldable[] fields = document.getFieldables( name );
+                    List<Fieldable> changed = new ArrayList<Fieldable>();
+                    for ( Fieldable field : fields )
+                    {
+                        String value = field.stringValue();
+                        if ( value != null && !value.equals( value.toLowerCase() ) )
+                        {
+                            changed.add( field );
+                        }
+                    }
+                    if ( changed.isEmpty() )
+                    {
+                        return false;
+                    }
+                    document.removeFields( name );
+                    for ( Fieldable field : fields )
+                    {
+                        document.add( changed.contains( field ) ? copy( field, name, field.stringValue().toLowerCase() )
+                                : field );
+                    }
+                    return true;
+                }
+            };
+        }
+
+        private static Field copy( Fieldable field, String name, String value )
+        {
+            Field.Index index = Field.Index.toIndex( field.isIndexed(), field.isTokenized(), field.getOmitNorms() );
+            return new Field( name, value, field.isStored() ? Field.Store.YES : Field.Store.NO, index );
+        }
+    }
+}
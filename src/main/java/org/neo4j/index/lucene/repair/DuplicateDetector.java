@@ -0,0 +1,368 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+import org.neo4j.kernel.EmbeddedReadOnlyGraphDatabase;
+
+/**
+ * Finds entity ids that have more than one live document in an index. The
+ * _id_ term dictionary of the whole index, which already merges all
+ * segments, is walked once and every term with a document frequency above one
+ * is checked against its live postings. On top of that every parsed id goes
+ * into a fixed size {@link OffHeapLongSet}, which catches the same id written
+ * as different terms (e.g. "7" and "07"). If the set fills up that second
+ * check stops, the term based check always runs to the end.
+ * <p>
+ * Optionally the stale documents of each duplicated term are deleted. Document
+ * order says nothing about which one is current, merges reorder segments, so
+ * the survivor is decided by the store: the document whose key/value pairs
+ * are all properties of the entity, and of those the one with the most
+ * pairs. If no document matches, or the entity is gone, all are kept. This
+ * only resolves indexes whose values were also set as properties; the store
+ * is opened read only, one detector at a time, and only if there is a
+ * duplicate.
+ */
+public class DuplicateDetector
+{
+    private static final Logger log = Logger.getLogger( DuplicateDetector.class.getName() );
+    private static final String IdField = "_id_";
+
+    private final File dir;
+    private long memoryBudget = 64 * 1024 * 1024;
+    private boolean deleteStale;
+    private DamageReportWriter report;
+    private DirectoryStrategy strategy = DirectoryStrategy.FS;
+    private IoRateLimiter limiter;
+
+    private int duplicatedIds;
+    private int duplicateDocs;
+    private int differentlyWrittenIds;
+    private boolean idSetFull;
+    private int unresolvedIds;
+    private final List<long[]> duplicates = new ArrayList<long[]>();
+
+    public DuplicateDetector( File indexDir )
+    {
+        this.dir = indexDir;
+    }
+
+    /**
+     * @see IndexRepair#IndexRepair(File, DirectoryStrategy, IoRateLimiter)
+     */
+    public void setDirectoryStrategy( DirectoryStrategy strategy, IoRateLimiter limiter )
+    {
+        this.strategy = strategy;
+        this.limiter = limiter;
+    }
+
+    /**
+     * The number of bytes the id set may use off heap.
+     */
+    public void setMemoryBudget( long memoryBudget )
+    {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * If set, every document of a duplicated id except the one that matches
+     * the entity in the store is deleted.
+     */
+    public void setDeleteStale( boolean deleteStale )
+    {
+        this.deleteStale = deleteStale;
+    }
+
+    public void setReportWriter( DamageReportWriter report )
+    {
+        this.report = report;
+    }
+
+    public void scan() throws IOException
+    {
+        IndexReader reader = IndexReader.open( strategy.open( dir, limiter ), !deleteStale );
+        OffHeapLongSet ids = new OffHeapLongSet( memoryBudget );
+        int[] docs = new int[16];
+        try
+        {
+            TermEnum terms = reader.terms( new Term( IdField, "" ) );
+            TermDocs termDocs = reader.termDocs();
+            try
+            {
+                do
+                {
+                    Term term = terms.term();
+                    if ( term == null || !IdField.equals( term.field() ) )
+                    {
+                        break;
+                    }
+                    checkDifferentlyWritten( term, ids );
+                    if ( terms.docFreq() < 2 )
+                    {
+                        continue;
+                    }
+                    // docFreq includes deleted documents, count the live ones
+                    int live = 0;
+                    termDocs.seek( terms );
+                    while ( termDocs.next() )
+                    {
+                        if ( live == docs.length )
+                        {
+                            int[] grown = new int[docs.length * 2];
+                            System.arraycopy( docs, 0, grown, 0, live );
+                            docs = grown;
+                        }
+                        docs[live++] = termDocs.doc();
+                    }
+                    if ( live > 1 )
+                    {
+                        handleDuplicates( reader, docs, live );
+                    }
+                }
+                while ( terms.next() );
+            }
+            finally
+            {
+                termDocs.close();
+                terms.close();
+            }
+            if ( deleteStale && !duplicates.isEmpty() )
+            {
+                deleteStale( reader );
+                reader.commit( null );
+            }
+        }
+        finally
+        {
+            ids.close();
+            reader.close();
+        }
+        log.info( "Index " + dir.getAbsolutePath() + " has " + duplicatedIds + " ids with " + duplicateDocs
+                  + " extra documents, " + differentlyWrittenIds + " ids written in more than one way"
+                  + ( idSetFull ? " (id set full, check incomplete)" : "" )
+                  + ( unresolvedIds > 0 ? ", " + unresolvedIds + " ids not resolved against the store" : "" ) );
+    }
+
+    public int getDuplicatedIdCount()
+    {
+        return duplicatedIds;
+    }
+
+    /**
+     * @return the number of documents beyond the first for every duplicated
+     *         id.
+     */
+    public int getDuplicateDocCount()
+    {
+        return duplicateDocs;
+    }
+
+    /**
+     * @return the number of duplicated ids whose documents were all kept
+     *         because none of them matches the entity in the store.
+     */
+    public int getUnresolvedIdCount()
+    {
+        return unresolvedIds;
+    }
+
+    public int getDifferentlyWrittenIdCount()
+    {
+        return differentlyWrittenIds;
+    }
+
+    private void checkDifferentlyWritten( Term term, OffHeapLongSet ids )
+    {
+        if ( idSetFull )
+        {
+            return;
+        }
+        long id;
+        try
+        {
+            id = Long.parseLong( term.text() );
+        }
+        catch ( NumberFormatException e )
+        {
+            return;
+        }
+        if ( id < 0 )
+        {
+            return;
+        }
+        switch ( ids.add( id ) )
+        {
+        case PRESENT:
+            differentlyWrittenIds++;
+            log.warning( "Id " + id + " is indexed under more than one _id_ term, one of them is " + term.text() );
+            break;
+        case FULL:
+            idSetFull = true;
+            log.warning( "Id set for " + dir.getAbsolutePath() + " is full after " + ids.size()
+                         + " ids, not checking for ids written in more than one way any more" );
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void handleDuplicates( IndexReader reader, int[] docs, int count ) throws IOException
+    {
+        duplicatedIds++;
+        duplicateDocs += count - 1;
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( report != null )
+            {
+                report.report( dir, "duplicate", docs[i], reader.document( docs[i] ) );
+            }
+        }
+        if ( deleteStale )
+        {
+            // the id, then its documents
+            long[] group = new long[count + 1];
+            try
+            {
+                group[0] = Long.parseLong( reader.document( docs[0] ).get( IdField ) );
+            }
+            catch ( NumberFormatException e )
+            {
+                unresolvedIds++;
+                return;
+            }
+            for ( int i = 0; i < count; i++ )
+            {
+                group[i + 1] = docs[i];
+            }
+            duplicates.add( group );
+        }
+    }
+
+    private void deleteStale( IndexReader reader ) throws IOException
+    {
+        boolean node = IndexPaths.typeOf( dir ) == IndexTypeEnum.Node;
+        synchronized ( DuplicateDetector.class )
+        {
+            GraphDatabaseService db = new EmbeddedReadOnlyGraphDatabase(
+                    IndexPaths.storeOf( dir ).getAbsolutePath() );
+            try
+            {
+                for ( long[] group : duplicates )
+                {
+                    PropertyContainer entity;
+                    try
+                    {
+                        entity = node ? db.getNodeById( group[0] ) : db.getRelationshipById( group[0] );
+                    }
+                    catch ( NotFoundException e )
+                    {
+                        unresolvedIds++;
+                        continue;
+                    }
+                    int survivor = -1;
+                    int survivorPairs = -1;
+                    for ( int i = 1; i < group.length; i++ )
+                    {
+                        int pairs = matchingPairs( reader.document( (int) group[i] ), entity );
+                        if ( pairs > survivorPairs )
+                        {
+                            survivor = (int) group[i];
+                            survivorPairs = pairs;
+                        }
+                    }
+                    if ( survivor < 0 )
+                    {
+                        unresolvedIds++;
+                        continue;
+                    }
+                    for ( int i = 1; i < group.length; i++ )
+                    {
+                        if ( group[i] != survivor )
+                        {
+                            reader.deleteDocument( (int) group[i] );
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                db.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return the number of key/value pairs of the document, or -1 if one of
+     *         them is not a property of the entity.
+     */
+    private static int matchingPairs( Document doc, PropertyContainer entity )
+    {
+        int pairs = 0;
+        for ( Fieldable field : doc.getFields() )
+        {
+            if ( field.name().startsWith( "_" ) || field.stringValue() == null )
+            {
+                continue;
+            }
+            if ( !hasValue( entity.getProperty( field.name(), null ), field.stringValue() ) )
+            {
+                return -1;
+            }
+            pairs++;
+        }
+        return pairs;
+    }
+
+    private static boolean hasValue( Object property, String value )
+    {
+        if ( property == null )
+        {
+            return false;
+        }
+        if ( property.getClass().isArray() )
+        {
+            for ( int i = 0; i < Array.getLength( property ); i++ )
+            {
+                if ( value.equals( String.valueOf( Array.get( property, i ) ) ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return value.equals( property.toString() );
+    }
+}
@@ -0,0 +1,621 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.Version;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+import org.neo4j.kernel.EmbeddedReadOnlyGraphDatabase;
+
+/**
+ * Gives documents that lost their _id_ their id back, for indexes whose
+ * values were also set as properties. A damaged document is recovered when
+ * every one of its key/value pairs is a property of exactly one entity, the
+ * same one for all of them, and that entity has no live document yet.
+ * <p>
+ * The damaged documents are found from the _id_ postings and read twice,
+ * one at a time, so none of them is held in memory. The first pass puts
+ * their key/value pairs into a small open addressing table of primitive
+ * arrays, then one pass over the entities of the store, in id order, looks up
+ * the properties with the keys found in damaged documents. The second pass
+ * resolves every damaged document and writes it again with its id, through
+ * one writer that does not merge, so the document numbers of the existing
+ * segments stay as they are. Once that is committed the originals are deleted
+ * by document number. If that last step does not happen the recovered
+ * entities have a live document each and the originals are left damaged,
+ * for the next repair run to delete.
+ * <p>
+ * The database must not be running, it is opened read only.
+ */
+public class IdRecovery
+{
+    private static final Logger log = Logger.getLogger( IdRecovery.class.getName() );
+    private static final String IdField = "_id_";
+    private static final String StartNodeField = "_start_node_id_";
+    private static final String EndNodeField = "_end_node_id_";
+    private static final long NoEntity = -1;
+    private static final long Ambiguous = -2;
+
+    private final File storeDir;
+    private final IndexTypeEnum type;
+    private final String indexName;
+    private boolean snapshot;
+
+    private OpenBitSet hasId;
+    private int damagedDocs;
+    private int recoveredDocs;
+    private int unmatchedDocs;
+    private int ambiguousDocs;
+
+    public IdRecovery( File storeDir, IndexTypeEnum type, String indexName )
+    {
+        this.storeDir = storeDir;
+        this.type = type;
+        this.indexName = indexName;
+    }
+
+    /**
+     * If set, the rewrite is preceded by an {@link IndexSnapshot} of the
+     * commit it starts from.
+     */
+    public void setSnapshot( boolean snapshot )
+    {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the number of documents given back their id.
+     */
+    public int recover() throws IOException
+    {
+        File index = indexDirectory();
+        Directory directory = FSDirectory.open( index );
+        Resolved recovered;
+        IndexReader reader = IndexReader.open( directory, true );
+        try
+        {
+            PairLookup lookup = lookUpDamaged( reader );
+            if ( damagedDocs == 0 )
+            {
+                return 0;
+            }
+            if ( snapshot )
+            {
+                IndexSnapshot.take( index, reader.getIndexCommit() );
+            }
+            IndexWriter writer = new IndexWriter( directory, new IndexWriterConfig( Version.LUCENE_35,
+                    new WhitespaceAnalyzer( Version.LUCENE_35 ) ).setOpenMode( IndexWriterConfig.OpenMode.APPEND )
+                    .setMergePolicy( NoMergePolicy.COMPOUND_FILES ) );
+            try
+            {
+                recovered = resolveAll( reader, lookup, writer );
+                writer.commit();
+                writer.close();
+                writer = null;
+            }
+            finally
+            {
+                if ( writer != null )
+                {
+                    writer.rollback();
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        if ( recoveredDocs > 0 )
+        {
+            deleteOriginals( directory, recovered );
+        }
+        log.info( "Recovered the id of " + recoveredDocs + " of " + damagedDocs + " damaged documents in "
+                  + index.getAbsolutePath() + ", " + unmatchedDocs + " not found in the store, " + ambiguousDocs
+                  + " ambiguous" );
+        return recoveredDocs;
+    }
+
+    /**
+     * Resolves the damaged documents like {@link #recover()} but leaves the
+     * index as it is.
+     *
+     * @return the damaged documents that would be recovered, each with its
+     *         entity.
+     */
+    Resolved resolveDamaged() throws IOException
+    {
+        IndexReader reader = IndexReader.open( FSDirectory.open( indexDirectory() ), true );
+        try
+        {
+            PairLookup lookup = lookUpDamaged( reader );
+            return damagedDocs > 0 ? resolveAll( reader, lookup, null ) : new Resolved();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    public int getDamagedCount()
+    {
+        return damagedDocs;
+    }
+
+    public int getRecoveredCount()
+    {
+        return recoveredDocs;
+    }
+
+    /**
+     * @return the number of damaged documents with a key/value pair no entity
+     *         has.
+     */
+    public int getUnmatchedCount()
+    {
+        return unmatchedDocs;
+    }
+
+    /**
+     * @return the number of damaged documents with a key/value pair more than
+     *         one entity has, whose pairs point to different entities, or
+     *         whose entity already has a live document.
+     */
+    public int getAmbiguousCount()
+    {
+        return ambiguousDocs;
+    }
+
+    private File indexDirectory()
+    {
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        return type == IndexTypeEnum.Node ? paths.forNode( indexName ) : paths.forRelationship( indexName );
+    }
+
+    /**
+     * The first pass, collects the key/value pairs of the damaged documents
+     * and finds the entities that have them.
+     */
+    private PairLookup lookUpDamaged( IndexReader reader ) throws IOException
+    {
+        hasId = IndexRepair.documentsWithId( reader );
+        PairLookup lookup = new PairLookup();
+        damagedDocs = 0;
+        for ( int i = 0; i < reader.maxDoc(); i++ )
+        {
+            if ( reader.isDeleted( i ) || hasId.fastGet( i ) )
+            {
+                continue;
+            }
+            damagedDocs++;
+            for ( Fieldable pair : pairsOf( reader.document( i ) ) )
+            {
+                lookup.add( pair.name(), pair.stringValue() );
+            }
+        }
+        log.info( indexName + " has " + damagedDocs + " documents without id, with " + lookup.size()
+                  + " distinct key/value pairs" );
+        if ( damagedDocs > 0 )
+        {
+            findEntities( lookup );
+        }
+        return lookup;
+    }
+
+    /**
+     * The second pass, resolves every damaged document to its entity and, if
+     * there is a writer, adds it again with its id.
+     *
+     * @return the recovered damaged documents.
+     */
+    private Resolved resolveAll( IndexReader reader, PairLookup lookup, IndexWriter writer ) throws IOException
+    {
+        Resolved recovered = new Resolved();
+        OpenBitSet entities = new OpenBitSet();
+        recoveredDocs = 0;
+        unmatchedDocs = 0;
+        ambiguousDocs = 0;
+        TermDocs termDocs = reader.termDocs();
+        try
+        {
+            for ( int i = 0; i < reader.maxDoc(); i++ )
+            {
+                if ( reader.isDeleted( i ) || hasId.fastGet( i ) )
+                {
+                    continue;
+                }
+                Document doc = reader.document( i );
+                List<Fieldable> pairs = pairsOf( doc );
+                long entity = entityOf( pairs, lookup );
+                if ( entity == NoEntity )
+                {
+                    unmatchedDocs++;
+                    continue;
+                }
+                if ( entity == Ambiguous || entities.get( entity ) || hasLiveDocument( termDocs, entity ) )
+                {
+                    ambiguousDocs++;
+                    continue;
+                }
+                entities.set( entity );
+                recovered.add( i, entity );
+                recoveredDocs++;
+                if ( writer != null )
+                {
+                    Fieldable first = pairs.get( 0 );
+                    writer.addDocument( withId( doc, entity, lookup, lookup.indexOf( first.name(),
+                            first.stringValue() ) ) );
+                }
+            }
+        }
+        finally
+        {
+            termDocs.close();
+        }
+        return recovered;
+    }
+
+    private static boolean hasLiveDocument( TermDocs termDocs, long entity ) throws IOException
+    {
+        termDocs.seek( new Term( IdField, Long.toString( entity ) ) );
+        return termDocs.next();
+    }
+
+    /**
+     * @return the entity all the pairs belong to, {@link #NoEntity} if one of
+     *         them belongs to none or {@link #Ambiguous}.
+     */
+    private static long entityOf( List<Fieldable> pairs, PairLookup lookup )
+    {
+        long entity = NoEntity;
+        for ( Fieldable pair : pairs )
+        {
+            int entry = lookup.indexOf( pair.name(), pair.stringValue() );
+            long other = entry < 0 ? NoEntity : lookup.entityOf( entry );
+            if ( other == NoEntity )
+            {
+                return NoEntity;
+            }
+            if ( entity == NoEntity )
+            {
+                entity = other;
+            }
+            else if ( entity != other )
+            {
+                entity = Ambiguous;
+            }
+        }
+        return entity;
+    }
+
+    private static void deleteOriginals( Directory directory, Resolved recovered ) throws IOException
+    {
+        IndexReader reader = IndexReader.open( directory, false );
+        try
+        {
+            for ( int i = 0; i < recovered.size(); i++ )
+            {
+                reader.deleteDocument( recovered.documentAt( i ) );
+            }
+            reader.commit( null );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the stored fields of the document that are not internal.
+     */
+    private static List<Fieldable> pairsOf( Document doc )
+    {
+        List<Fieldable> result = new ArrayList<Fieldable>();
+        for ( Fieldable field : doc.getFields() )
+        {
+            if ( !field.name().startsWith( "_" ) && field.stringValue() != null )
+            {
+                result.add( field );
+            }
+        }
+        return result;
+    }
+
+    private void findEntities( PairLookup lookup ) throws IOException
+    {
+        InUseRecords inUse = InUseRecords.forType( storeDir, type );
+        Set<String> keys = lookup.keys();
+        long start = System.currentTimeMillis();
+        GraphDatabaseService db = new EmbeddedReadOnlyGraphDatabase( storeDir.getAbsolutePath() );
+        try
+        {
+            for ( long id = 0; id < inUse.getHighId(); id++ )
+            {
+                if ( !inUse.isInUse( id ) )
+                {
+                    continue;
+                }
+                PropertyContainer entity;
+                try
+                {
+                    entity = type == IndexTypeEnum.Node ? db.getNodeById( id ) : db.getRelationshipById( id );
+                }
+                catch ( NotFoundException e )
+                {
+                    continue;
+                }
+                for ( String key : keys )
+                {
+                    Object value = entity.getProperty( key, null );
+                    if ( value == null )
+                    {
+                        continue;
+                    }
+                    if ( value.getClass().isArray() )
+                    {
+                        for ( int i = 0; i < Array.getLength( value ); i++ )
+                        {
+                            lookup.match( key, String.valueOf( Array.get( value, i ) ), id, entity );
+                        }
+                    }
+                    else
+                    {
+                        lookup.match( key, value.toString(), id, entity );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            db.shutdown();
+        }
+        log.info( "Looked up " + keys.size() + " keys on " + inUse.getHighId() + " entities in "
+                  + ( System.currentTimeMillis() - start ) + " ms" );
+    }
+
+    private Document withId( Document damaged, long entity, PairLookup lookup, int entry )
+    {
+        Document doc = new Document();
+        doc.add( new Field( IdField, Long.toString( entity ), Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+        if ( type == IndexTypeEnum.Relationship && damaged.getFieldable( StartNodeField ) == null )
+        {
+            doc.add( new Field( StartNodeField, Long.toString( lookup.startNodeOf( entry ) ), Field.Store.YES,
+                    Field.Index.NOT_ANALYZED ) );
+            doc.add( new Field( EndNodeField, Long.toString( lookup.endNodeOf( entry ) ), Field.Store.YES,
+                    Field.Index.NOT_ANALYZED ) );
+        }
+        for ( Fieldable field : damaged.getFields() )
+        {
+            doc.add( field );
+        }
+        return doc;
+    }
+
+    /**
+     * Damaged documents resolved to their entity, in document order, in two
+     * parallel arrays.
+     */
+    static class Resolved
+    {
+        private int[] documents = new int[16];
+        private long[] entities = new long[16];
+        private int size;
+
+        void add( int document, long entity )
+        {
+            if ( size == documents.length )
+            {
+                documents = Arrays.copyOf( documents, size * 2 );
+                entities = Arrays.copyOf( entities, size * 2 );
+            }
+            documents[size] = document;
+            entities[size] = entity;
+            size++;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        int documentAt( int i )
+        {
+            return documents[i];
+        }
+
+        /**
+         * @return the entity of the given damaged document, or -1 if it was
+         *         not resolved.
+         */
+        long entityOf( int document )
+        {
+            int i = Arrays.binarySearch( documents, 0, size, document );
+            return i < 0 ? NoEntity : entities[i];
+        }
+    }
+
+    /**
+     * The key/value pairs of the damaged documents, each with the entity
+     * found to have it. Open addressing with linear probing over an int table
+     * of entry numbers, the entries themselves in parallel arrays, so the
+     * lookups made for every property of the store allocate nothing.
+     */
+    private static class PairLookup
+    {
+        private final Set<String> keys = new HashSet<String>();
+        private int[] slots = new int[64];
+        private String[] pairKeys = new String[32];
+        private String[] pairValues = new String[32];
+        private long[] entities = new long[32];
+        private long[] startNodes = new long[32];
+        private long[] endNodes = new long[32];
+        private int size;
+
+        /**
+         * @return the entry of the pair, added if it is not there yet.
+         */
+        int add( String key, String value )
+        {
+            int slot = slotOf( key, value );
+            if ( slots[slot] != 0 )
+            {
+                return slots[slot] - 1;
+            }
+            if ( size == pairKeys.length )
+            {
+                int capacity = size * 2;
+                pairKeys = Arrays.copyOf( pairKeys, capacity );
+                pairValues = Arrays.copyOf( pairValues, capacity );
+                entities = Arrays.copyOf( entities, capacity );
+                startNodes = Arrays.copyOf( startNodes, capacity );
+                endNodes = Arrays.copyOf( endNodes, capacity );
+            }
+            pairKeys[size] = key;
+            pairValues[size] = value;
+            entities[size] = NoEntity;
+            keys.add( key );
+            slots[slot] = ++size;
+            if ( size * 2 > slots.length )
+            {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        void match( String key, String value, long id, PropertyContainer entity )
+        {
+            int entry = slots[slotOf( key, value )] - 1;
+            if ( entry < 0 || entities[entry] == id )
+            {
+                return;
+            }
+            if ( entities[entry] != NoEntity )
+            {
+                entities[entry] = Ambiguous;
+                return;
+            }
+            entities[entry] = id;
+            if ( entity instanceof Relationship )
+            {
+                startNodes[entry] = ( (Relationship) entity ).getStartNode().getId();
+                endNodes[entry] = ( (Relationship) entity ).getEndNode().getId();
+            }
+        }
+
+        /**
+         * @return the entry of the pair, or -1 if it is not there.
+         */
+        int indexOf( String key, String value )
+        {
+            return slots[slotOf( key, value )] - 1;
+        }
+
+        long entityOf( int entry )
+        {
+            return entities[entry];
+        }
+
+        long startNodeOf( int entry )
+        {
+            return startNodes[entry];
+        }
+
+        long endNodeOf( int entry )
+        {
+            return endNodes[entry];
+        }
+
+        Set<String> keys()
+        {
+            return keys;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        /**
+         * @return the slot holding the pair, or the empty slot it would go
+         *         in.
+         */
+        private int slotOf( String key, String value )
+        {
+            int mask = slots.length - 1;
+            int slot = hash( key, value ) & mask;
+            while ( slots[slot] != 0 )
+            {
+                int entry = slots[slot] - 1;
+                if ( pairValues[entry].equals( value ) && pairKeys[entry].equals( key ) )
+                {
+                    return slot;
+                }
+                slot = ( slot + 1 ) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash()
+        {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for ( int entry = 0; entry < size; entry++ )
+            {
+                int slot = hash( pairKeys[entry], pairValues[entry] ) & mask;
+                while ( slots[slot] != 0 )
+                {
+                    slot = ( slot + 1 ) & mask;
+                }
+                slots[slot] = entry + 1;
+            }
+        }
+
+        private static int hash( String key, String value )
+        {
+            int h = key.hashCode() * 31 + value.hashCode();
+            return h ^ ( h >>> 16 );
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+import org.neo4j.kernel.impl.nioneo.store.NeoStore;
+import org.neo4j.kernel.impl.nioneo.store.NodeStore;
+import org.neo4j.kernel.impl.nioneo.store.RelationshipStore;
+
+/**
+ * The in use flags of all records of a node or relationship store, one bit
+ * per record in a plain long[]. The store file is read through memory mapped
+ * windows, looking only at the first byte of every record, whose lowest bit
+ * is the in use flag.
+ */
+public class InUseRecords
+{
+    private static final long WindowSize = 256 * 1024 * 1024;
+    private static final int InUseBit = 0x1;
+
+    private final long[] bits;
+    private final long highId;
+    private final long inUseCount;
+
+    private InUseRecords( long[] bits, long highId, long inUseCount )
+    {
+        this.bits = bits;
+        this.highId = highId;
+        this.inUseCount = inUseCount;
+    }
+
+    public static InUseRecords forNodes( File storeDir ) throws IOException
+    {
+        return read( new File( storeDir, NeoStore.DEFAULT_NAME + ".nodestore.db" ), NodeStore.RECORD_SIZE,
+                NodeStore.TYPE_DESCRIPTOR );
+    }
+
+    public static InUseRecords forRelationships( File storeDir ) throws IOException
+    {
+        return read( new File( storeDir, NeoStore.DEFAULT_NAME + ".relationshipstore.db" ),
+                RelationshipStore.RECORD_SIZE, RelationshipStore.TYPE_DESCRIPTOR );
+    }
+
+    public static InUseRecords forType( File storeDir, IndexTypeEnum type ) throws IOException
+    {
+        switch ( type )
+        {
+        case Node:
+            return forNodes( storeDir );
+        case Relationship:
+            return forRelationships( storeDir );
+        default:
+            throw new IllegalArgumentException( "How am i supposed to deal with " + type );
+        }
+    }
+
+    static InUseRecords read( File storeFile, int recordSize, String typeDescriptor ) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile( storeFile, "r" );
+        try
+        {
+            FileChannel channel = file.getChannel();
+            long records = dataLength( channel, typeDescriptor ) / recordSize;
+            long[] bits = new long[(int) ( ( records + 63 ) >>> 6 )];
+            long inUse = 0;
+            long recordsPerWindow = WindowSize / recordSize;
+            for ( long first = 0; first < records; first += recordsPerWindow )
+            {
+                long count = Math.min( recordsPerWindow, records - first );
+                MappedByteBuffer window = channel.map( FileChannel.MapMode.READ_ONLY, first * recordSize, count
+                                                                                                         * recordSize );
+                for ( int i = 0; i < count; i++ )
+                {
+                    if ( ( window.get( i * recordSize ) & InUseBit ) != 0 )
+                    {
+                        long id = first + i;
+                        bits[(int) ( id >>> 6 )] |= 1L << ( id & 63 );
+                        inUse++;
+                    }
+                }
+            }
+            return new InUseRecords( bits, records, inUse );
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Store files end with a trailer holding the type descriptor and version,
+     * e.g. "NodeStore v0.A.0", which must not be read as records.
+     */
+    private static long dataLength( FileChannel channel, String typeDescriptor ) throws IOException
+    {
+        long size = channel.size();
+        int tailLength = (int) Math.min( size, 64 );
+        ByteBuffer tail = ByteBuffer.allocate( tailLength );
+        while ( tail.hasRemaining() && channel.read( tail, size - tailLength + tail.position() ) != -1 )
+        {
+            // keep reading until the whole tail is in
+        }
+        String tailString = new String( tail.array(), 0, tailLength, "ISO-8859-1" );
+        int trailerStart = tailString.lastIndexOf( typeDescriptor );
+        return trailerStart == -1 ? size : size - tailLength + trailerStart;
+    }
+
+    public boolean isInUse( long id )
+    {
+        if ( id < 0 || id >= highId )
+        {
+            return false;
+        }
+        return ( bits[(int) ( id >>> 6 )] & ( 1L << ( id & 63 ) ) ) != 0;
+    }
+
+    /**
+     * @return the number of records in the store, in use or not.
+     */
+    public long getHighId()
+    {
+        return highId;
+    }
+
+    public long getInUseCount()
+    {
+        return inUseCount;
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Merges away the deleted documents a repair leaves behind, so that the index
+ * the database comes back up on is as small as it can be. Deletions only mark
+ * documents, they stay in the segment files until a merge rewrites them.
+ * Nothing is done if the share of deleted documents is below a threshold.
+ */
+public class IndexCompactor
+{
+    private static final Logger log = Logger.getLogger( IndexCompactor.class.getName() );
+
+    private final File dir;
+    private double deletedRatioThreshold = 0.1;
+    private int maxSegments;
+    private int mergeThreads = 1;
+    private DirectoryStrategy strategy = DirectoryStrategy.FS;
+    private IoRateLimiter limiter;
+
+    private boolean compacted;
+    private Stats before;
+    private Stats after;
+
+    public IndexCompactor( File indexDir )
+    {
+        this.dir = indexDir;
+    }
+
+    /**
+     * @see IndexRepair#IndexRepair(File, DirectoryStrategy, IoRateLimiter)
+     */
+    public void setDirectoryStrategy( DirectoryStrategy strategy, IoRateLimiter limiter )
+    {
+        this.strategy = strategy;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Only compact if at least this share of the documents, 0 to 1, is
+     * deleted. The default is 0.1.
+     */
+    public void setDeletedRatioThreshold( double deletedRatioThreshold )
+    {
+        if ( deletedRatioThreshold < 0 || deletedRatioThreshold > 1 )
+        {
+            throw new IllegalArgumentException( "The deleted ratio must be between 0 and 1, got "
+                                                + deletedRatioThreshold );
+        }
+        this.deletedRatioThreshold = deletedRatioThreshold;
+    }
+
+    /**
+     * Merge down to at most this many segments. Zero, the default, only
+     * rewrites the segments that have deletions.
+     */
+    public void setMaxSegments( int maxSegments )
+    {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Sets how many merges run at the same time.
+     */
+    public void setMergeThreads( int mergeThreads )
+    {
+        if ( mergeThreads < 1 )
+        {
+            throw new IllegalArgumentException( "Need at least one merge thread, got " + mergeThreads );
+        }
+        this.mergeThreads = mergeThreads;
+    }
+
+    /**
+     * @return whether the index was compacted, false if it was below the
+     *         threshold.
+     */
+    public boolean compact() throws IOException
+    {
+        Directory directory = strategy.open( dir, limiter );
+        try
+        {
+            before = stats( directory );
+            if ( before.maxDoc == 0 || before.getDeletedRatio() < deletedRatioThreshold )
+            {
+                log.info( "Not compacting " + dir.getAbsolutePath() + ", " + before );
+                after = before;
+                return false;
+            }
+            ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+            scheduler.setMaxMergeCount( mergeThreads + 2 );
+            scheduler.setMaxThreadCount( mergeThreads );
+            TieredMergePolicy policy = new TieredMergePolicy();
+            policy.setForceMergeDeletesPctAllowed( 0 );
+            IndexWriter writer = new IndexWriter( directory, new IndexWriterConfig( Version.LUCENE_35,
+                    new WhitespaceAnalyzer( Version.LUCENE_35 ) ).setMergeScheduler( scheduler ).setMergePolicy(
+                    policy ) );
+            try
+            {
+                if ( maxSegments > 0 )
+                {
+                    writer.forceMerge( maxSegments );
+                }
+                else
+                {
+                    writer.forceMergeDeletes( true );
+                }
+                writer.commit();
+            }
+            catch ( IOException e )
+            {
+                writer.rollback();
+                writer = null;
+                throw e;
+            }
+            finally
+            {
+                if ( writer != null )
+                {
+                    writer.close();
+                }
+            }
+            after = stats( directory );
+            compacted = true;
+            log.info( "Compacted " + dir.getAbsolutePath() + " from " + before + " to " + after );
+            return true;
+        }
+        finally
+        {
+            directory.close();
+        }
+    }
+
+    public boolean isCompacted()
+    {
+        return compacted;
+    }
+
+    public Stats getBefore()
+    {
+        return before;
+    }
+
+    public Stats getAfter()
+    {
+        return after;
+    }
+
+    private Stats stats( Directory directory ) throws IOException
+    {
+        IndexReader reader = IndexReader.open( directory, true );
+        try
+        {
+            IndexReader[] segments = reader.getSequentialSubReaders();
+            return new Stats( IndexPaths.sizeOf( dir ), segments == null ? 1 : segments.length, reader.maxDoc(),
+                    reader.numDeletedDocs() );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Size and shape of an index at one point in time.
+     */
+    public static class Stats
+    {
+        private final long bytes;
+        private final int segments;
+        private final int maxDoc;
+        private final int deletedDocs;
+
+        Stats( long bytes, int segments, int maxDoc, int deletedDocs )
+        {
+            this.bytes = bytes;
+            this.segments = segments;
+            this.maxDoc = maxDoc;
+            this.deletedDocs = deletedDocs;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public int getSegments()
+        {
+            return segments;
+        }
+
+        public int getMaxDoc()
+        {
+            return maxDoc;
+        }
+
+        public int getDeletedDocs()
+        {
+            return deletedDocs;
+        }
+
+        public double getDeletedRatio()
+        {
+            return maxDoc == 0 ? 0 : deletedDocs / (double) maxDoc;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "%d bytes in %d segments, %d of %d documents deleted", bytes, segments,
+                    deletedDocs, maxDoc );
+        }
+    }
+}
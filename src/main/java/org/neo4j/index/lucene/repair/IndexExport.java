@@ -0,0 +1,538 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Exports the documents of an index as (entity id, key, value) tuples into a
+ * compact binary file, and imports such a file into an index. The file is a
+ * plain header followed by the records, optionally gzipped:
+ * <ul>
+ * <li>header: magic int, version byte, compressed byte</li>
+ * <li>per document: 1, entity id as a variable length long, number of
+ * fields as a variable length int, then per field a key reference and the
+ * value, as a length prefixed UTF-8 string or, for numeric keys, as eight
+ * bytes</li>
+ * <li>end: 0</li>
+ * </ul>
+ * A key reference is the position of the key in a dictionary built while
+ * writing. A reference one past its end is followed by the key name and a
+ * flags byte telling whether it is indexed, tokenized or numeric, then for
+ * numeric keys a byte with the number type, and adds it. So every key name is
+ * written once however many documents have it. Numeric values, as added by
+ * ValueContext.numeric, are imported as NumericFields so that range queries
+ * on them keep working.
+ * <p>
+ * Everything goes through one direct buffer on a channel, memory use does
+ * not depend on the size of the index. Importing writes through one writer
+ * with a large RAM buffer, committed once. Tokenized fields are analyzed with
+ * the whitespace analyzer, as everywhere else in this tool.
+ */
+public class IndexExport
+{
+    private static final Logger log = Logger.getLogger( IndexExport.class.getName() );
+    private static final String IdField = "_id_";
+    private static final int Magic = 0x4C535558;
+    private static final byte Version1 = 1;
+    private static final byte Version2 = 2;
+    private static final int BufferSize = 1024 * 1024;
+    private static final byte Indexed = 0x1;
+    private static final byte Tokenized = 0x2;
+    private static final byte Numeric = 0x4;
+
+    private final File dir;
+    private boolean compress;
+    private boolean replace;
+    private double ramBufferSizeMB = 512;
+    private long documents;
+    private long skipped;
+
+    public IndexExport( File indexDir )
+    {
+        this.dir = indexDir;
+    }
+
+    /**
+     * Gzip the records of exports.
+     */
+    public void setCompress( boolean compress )
+    {
+        this.compress = compress;
+    }
+
+    /**
+     * If set, an import replaces whatever is in the index instead of adding
+     * to it.
+     */
+    public void setReplace( boolean replace )
+    {
+        this.replace = replace;
+    }
+
+    public void setRamBufferSizeMB( double ramBufferSizeMB )
+    {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+    }
+
+    /**
+     * @return the number of documents exported or imported by the last call.
+     */
+    public long getDocumentCount()
+    {
+        return documents;
+    }
+
+    /**
+     * @return the number of documents the last export left out because they
+     *         have no usable _id_.
+     */
+    public long getSkippedCount()
+    {
+        return skipped;
+    }
+
+    public void exportTo( File target ) throws IOException
+    {
+        documents = 0;
+        skipped = 0;
+        FileChannel file = new FileOutputStream( target ).getChannel();
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate( 6 );
+            header.putInt( Magic ).put( Version2 ).put( (byte) ( compress ? 1 : 0 ) ).flip();
+            while ( header.hasRemaining() )
+            {
+                file.write( header );
+            }
+            GZIPOutputStream gzip = compress ? new GZIPOutputStream( Channels.newOutputStream( file ), 64 * 1024 )
+                    : null;
+            RecordOutput out = new RecordOutput( gzip != null ? Channels.newChannel( gzip ) : file );
+            IndexReader reader = IndexReader.open( FSDirectory.open( dir ), true );
+            try
+            {
+                Map<String, Integer> keys = new HashMap<String, Integer>();
+                for ( int i = 0; i < reader.maxDoc(); i++ )
+                {
+                    if ( reader.isDeleted( i ) )
+                    {
+                        continue;
+                    }
+                    writeDocument( reader.document( i ), keys, out );
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+            out.writeByte( 0 );
+            out.flush();
+            if ( gzip != null )
+            {
+                gzip.finish();
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+        log.info( "Exported " + documents + " documents of " + dir.getAbsolutePath() + " to "
+                  + target.getAbsolutePath() + ", " + target.length() + " bytes"
+                  + ( skipped > 0 ? ", skipped " + skipped + " without an id" : "" ) );
+    }
+
+    private void writeDocument( Document doc, Map<String, Integer> keys, RecordOutput out ) throws IOException
+    {
+        Fieldable idField = doc.getFieldable( IdField );
+        long id;
+        try
+        {
+            id = idField == null ? -1 : Long.parseLong( idField.stringValue() );
+        }
+        catch ( NumberFormatException e )
+        {
+            id = -1;
+        }
+        if ( id < 0 )
+        {
+            skipped++;
+            return;
+        }
+        List<Fieldable> fields = new ArrayList<Fieldable>();
+        for ( Fieldable field : doc.getFields() )
+        {
+            if ( !IdField.equals( field.name() ) && field.stringValue() != null )
+            {
+                fields.add( field );
+            }
+        }
+        out.writeByte( 1 );
+        out.writeVLong( id );
+        out.writeVLong( fields.size() );
+        for ( Fieldable field : fields )
+        {
+            NumericField.DataType type = field instanceof NumericField ? ( (NumericField) field ).getDataType()
+                    : null;
+            byte flags;
+            if ( type != null )
+            {
+                // stored numeric fields load back indexed and tokenized, which is not how to add them again
+                flags = (byte) ( Numeric | ( field.isIndexed() ? Indexed : 0 ) );
+            }
+            else
+            {
+                flags = (byte) ( ( field.isIndexed() ? Indexed : 0 ) | ( field.isTokenized() ? Tokenized : 0 ) );
+            }
+            String key = flags + ":" + type + ":" + field.name();
+            Integer reference = keys.get( key );
+            if ( reference == null )
+            {
+                out.writeVLong( keys.size() );
+                out.writeString( field.name() );
+                out.writeByte( flags );
+                if ( type != null )
+                {
+                    out.writeByte( type.ordinal() );
+                }
+                keys.put( key, keys.size() );
+            }
+            else
+            {
+                out.writeVLong( reference );
+            }
+            if ( type != null )
+            {
+                Number value = ( (NumericField) field ).getNumericValue();
+                out.writeLong( type == NumericField.DataType.FLOAT || type == NumericField.DataType.DOUBLE
+                        ? Double.doubleToLongBits( value.doubleValue() ) : value.longValue() );
+            }
+            else
+            {
+                out.writeString( field.stringValue() );
+            }
+        }
+        documents++;
+    }
+
+    public void importFrom( File source ) throws IOException
+    {
+        documents = 0;
+        FileChannel file = new FileInputStream( source ).getChannel();
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate( 6 );
+            while ( header.hasRemaining() )
+            {
+                if ( file.read( header ) == -1 )
+                {
+                    throw new IOException( source + " is not an index export, it is too short" );
+                }
+            }
+            header.flip();
+            int magic = header.getInt();
+            byte version = header.get();
+            if ( magic != Magic || ( version != Version1 && version != Version2 ) )
+            {
+                throw new IOException( source + " is not an index export of a known version" );
+            }
+            boolean compressed = header.get() == 1;
+            RecordInput in = new RecordInput( compressed ? Channels.newChannel( new GZIPInputStream(
+                    Channels.newInputStream( file ), 64 * 1024 ) ) : file );
+            IndexWriterConfig config = new IndexWriterConfig( Version.LUCENE_35, new WhitespaceAnalyzer(
+                    Version.LUCENE_35 ) ).setRAMBufferSizeMB( ramBufferSizeMB ).setOpenMode(
+                    replace ? IndexWriterConfig.OpenMode.CREATE : IndexWriterConfig.OpenMode.CREATE_OR_APPEND );
+            IndexWriter writer = new IndexWriter( FSDirectory.open( dir ), config );
+            try
+            {
+                List<String> names = new ArrayList<String>();
+                List<Byte> flags = new ArrayList<Byte>();
+                List<NumericField.DataType> types = new ArrayList<NumericField.DataType>();
+                for ( byte marker = in.readByte(); marker != 0; marker = in.readByte() )
+                {
+                    if ( marker != 1 )
+                    {
+                        throw new IOException( "Corrupt export, record marker " + marker + " after " + documents
+                                               + " documents" );
+                    }
+                    writer.addDocument( readDocument( in, names, flags, types ) );
+                    documents++;
+                }
+                writer.commit();
+                writer.close();
+                writer = null;
+            }
+            finally
+            {
+                // anything that fails must not commit a partial import
+                if ( writer != null )
+                {
+                    writer.rollback();
+                }
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+        log.info( "Imported " + documents + " documents from " + source.getAbsolutePath() + " into "
+                  + dir.getAbsolutePath() );
+    }
+
+    private static Document readDocument( RecordInput in, List<String> names, List<Byte> flags,
+            List<NumericField.DataType> types ) throws IOException
+    {
+        Document doc = new Document();
+        doc.add( new Field( IdField, Long.toString( in.readVLong() ), Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+        long fieldCount = in.readVLong();
+        for ( long i = 0; i < fieldCount; i++ )
+        {
+            long read = in.readVLong();
+            if ( read < 0 || read > names.size() )
+            {
+                throw new IOException( "Corrupt export, key reference " + read + " with only " + names.size()
+                                       + " keys known" );
+            }
+            int reference = (int) read;
+            if ( reference == names.size() )
+            {
+                names.add( in.readString() );
+                byte keyFlags = in.readByte();
+                flags.add( keyFlags );
+                types.add( ( keyFlags & Numeric ) == 0 ? null : readType( in ) );
+            }
+            byte keyFlags = flags.get( reference );
+            NumericField.DataType type = types.get( reference );
+            if ( type != null )
+            {
+                doc.add( numericField( names.get( reference ), type, in.readLong(), ( keyFlags & Indexed ) != 0 ) );
+                continue;
+            }
+            Field.Index index = ( keyFlags & Indexed ) == 0 ? Field.Index.NO
+                    : ( keyFlags & Tokenized ) == 0 ? Field.Index.NOT_ANALYZED : Field.Index.ANALYZED;
+            doc.add( new Field( names.get( reference ), in.readString(), Field.Store.YES, index ) );
+        }
+        return doc;
+    }
+
+    private static NumericField.DataType readType( RecordInput in ) throws IOException
+    {
+        byte ordinal = in.readByte();
+        NumericField.DataType[] types = NumericField.DataType.values();
+        if ( ordinal < 0 || ordinal >= types.length )
+        {
+            throw new IOException( "Corrupt export, unknown number type " + ordinal );
+        }
+        return types[ordinal];
+    }
+
+    private static NumericField numericField( String name, NumericField.DataType type, long bits, boolean indexed )
+    {
+        NumericField field = new NumericField( name, Field.Store.YES, indexed );
+        switch ( type )
+        {
+        case INT:
+            return field.setIntValue( (int) bits );
+        case LONG:
+            return field.setLongValue( bits );
+        case FLOAT:
+            return field.setFloatValue( (float) Double.longBitsToDouble( bits ) );
+        default:
+            return field.setDoubleValue( Double.longBitsToDouble( bits ) );
+        }
+    }
+
+    /**
+     * Buffers records in a direct buffer and writes it to a channel when
+     * full.
+     */
+    private static class RecordOutput
+    {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect( BufferSize );
+
+        RecordOutput( WritableByteChannel channel )
+        {
+            this.channel = channel;
+        }
+
+        void writeByte( int b ) throws IOException
+        {
+            if ( !buffer.hasRemaining() )
+            {
+                flush();
+            }
+            buffer.put( (byte) b );
+        }
+
+        void writeVLong( long value ) throws IOException
+        {
+            while ( ( value & ~0x7FL ) != 0 )
+            {
+                writeByte( (int) ( ( value & 0x7F ) | 0x80 ) );
+                value >>>= 7;
+            }
+            writeByte( (int) value );
+        }
+
+        void writeLong( long value ) throws IOException
+        {
+            for ( int shift = 56; shift >= 0; shift -= 8 )
+            {
+                writeByte( (int) ( value >>> shift ) );
+            }
+        }
+
+        void writeString( String value ) throws IOException
+        {
+            byte[] bytes = value.getBytes( "UTF-8" );
+            writeVLong( bytes.length );
+            int offset = 0;
+            while ( offset < bytes.length )
+            {
+                if ( !buffer.hasRemaining() )
+                {
+                    flush();
+                }
+                int length = Math.min( buffer.remaining(), bytes.length - offset );
+                buffer.put( bytes, offset, length );
+                offset += length;
+            }
+        }
+
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while ( buffer.hasRemaining() )
+            {
+                channel.write( buffer );
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads records from a channel through a direct buffer.
+     */
+    private static class RecordInput
+    {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect( BufferSize );
+
+        RecordInput( ReadableByteChannel channel )
+        {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        private void fill() throws IOException
+        {
+            buffer.compact();
+            int read = channel.read( buffer );
+            buffer.flip();
+            if ( read == -1 )
+            {
+                throw new EOFException( "Export ends in the middle of a record" );
+            }
+        }
+
+        byte readByte() throws IOException
+        {
+            while ( !buffer.hasRemaining() )
+            {
+                fill();
+            }
+            return buffer.get();
+        }
+
+        long readVLong() throws IOException
+        {
+            long result = 0;
+            for ( int shift = 0; shift < 64; shift += 7 )
+            {
+                byte b = readByte();
+                result |= (long) ( b & 0x7F ) << shift;
+                if ( ( b & 0x80 ) == 0 )
+                {
+                    return result;
+                }
+            }
+            throw new IOException( "Corrupt export, variable length number too long" );
+        }
+
+        long readLong() throws IOException
+        {
+            long result = 0;
+            for ( int i = 0; i < 8; i++ )
+            {
+                result = ( result << 8 ) | ( readByte() & 0xFF );
+            }
+            return result;
+        }
+
+        String readString() throws IOException
+        {
+            long length = readVLong();
+            if ( length > Integer.MAX_VALUE )
+            {
+                throw new IOException( "Corrupt export, string of " + length + " bytes" );
+            }
+            byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            while ( offset < bytes.length )
+            {
+                while ( !buffer.hasRemaining() )
+                {
+                    fill();
+                }
+                int chunk = Math.min( buffer.remaining(), bytes.length - offset );
+                buffer.get( bytes, offset, chunk );
+                offset += chunk;
+            }
+            return new String( bytes, "UTF-8" );
+        }
+    }
+}
@@ -20,6 +20,9 @@
 package org.neo4j.index.lucene.repair;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
@@ -28,20 +31,57 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.util.Version;
 
 public class IndexHandler
 {
-    private final Directory dir;
+    private static final String IdField = "_id_";
+
+    private final File index;
+    private final MeteredDirectory dir;
+    private double ramBufferSizeMB = 256;
+    private boolean snapshot;
 
     public IndexHandler( File index ) throws Exception
     {
-        dir = FSDirectory.open( index );
+        this( index, DirectoryStrategy.FS, null );
+    }
+
+    /**
+     * Opens the index with the given strategy, with its reads held to the
+     * rate of the limiter if it is not null.
+     */
+    public IndexHandler( File index, DirectoryStrategy strategy, IoRateLimiter limiter ) throws Exception
+    {
+        this.index = index;
+        dir = strategy.open( index, limiter );
+    }
+
+    /**
+     * @return the bytes read from the index files so far.
+     */
+    public long getBytesRead()
+    {
+        return dir.getBytesRead();
+    }
+
+    /**
+     * Sets the RAM buffer of the writer used by the batch operations. A big
+     * buffer means fewer flushed segments for big batches.
+     */
+    public void setRamBufferSizeMB( double ramBufferSizeMB )
+    {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+    }
+
+    /**
+     * If set, every change is preceded by an {@link IndexSnapshot} of the
+     * commit it starts from.
+     */
+    public void setSnapshot( boolean snapshot )
+    {
+        this.snapshot = snapshot;
     }
 
     //
@@ -52,21 +92,105 @@ public class IndexHandler
 
     public void deleteFieldFromNodeDocument( long nodeId, String fieldName ) throws Exception
     {
-        IndexReader reader = IndexReader.open( dir, false );
-        Document newDoc = null;
-        IndexSearcher searcher = new IndexSearcher( reader );
-        TopDocs searchResult = searcher.search( new TermQuery( new Term( "_id_", Long.toString( nodeId ) ) ), 2 );
+        if ( deleteFieldFromDocuments( Collections.singleton( nodeId ), fieldName ) == 0 )
+        {
+            throw new IllegalStateException( "There is no document for node id " + nodeId );
+        }
+    }
 
-        if ( searchResult.totalHits > 1 )
+    public void deleteFieldFromRelationshipDocument( long relationshipId, String fieldName ) throws Exception
+    {
+        if ( deleteFieldFromDocuments( Collections.singleton( relationshipId ), fieldName ) == 0 )
         {
-            throw new IllegalStateException( "There should be only one hit for node id " + nodeId
-                                             + ", i got at least 2" );
+            throw new IllegalStateException( "There is no document for relationship id " + relationshipId );
         }
+    }
 
-        int docId = searchResult.scoreDocs[0].doc;
-        Document original = reader.document( docId );
+    /**
+     * Removes a field from the documents of all the given nodes, see
+     * {@link #deleteFieldFromDocuments(Iterable, String)}.
+     */
+    public int deleteFieldFromNodeDocuments( Iterable<Long> nodeIds, String fieldName ) throws IOException
+    {
+        return deleteFieldFromDocuments( nodeIds, fieldName );
+    }
 
-        newDoc = new Document();
+    /**
+     * Removes a field from the documents of all the given relationships, see
+     * {@link #deleteFieldFromDocuments(Iterable, String)}.
+     */
+    public int deleteFieldFromRelationshipDocuments( Iterable<Long> relationshipIds, String fieldName )
+            throws IOException
+    {
+        return deleteFieldFromDocuments( relationshipIds, fieldName );
+    }
+
+    /**
+     * Rewrites the document of every given entity id without the given field.
+     * All ids are resolved against one reader and all documents are rewritten
+     * through one writer and committed once, so either the whole batch is
+     * applied or, if an id matches more than one document, none of it. Ids
+     * without a document are skipped.
+     *
+     * @return the number of documents rewritten.
+     */
+    public int deleteFieldFromDocuments( Iterable<Long> entityIds, String fieldName ) throws IOException
+    {
+        IndexReader reader = IndexReader.open( dir, true );
+        IndexWriter writer = null;
+        int rewritten = 0;
+        try
+        {
+            if ( snapshot )
+            {
+                IndexSnapshot.take( index, reader.getIndexCommit() );
+            }
+            writer = new IndexWriter( dir, new IndexWriterConfig( Version.LUCENE_35, new WhitespaceAnalyzer(
+                    Version.LUCENE_35 ) ).setRAMBufferSizeMB( ramBufferSizeMB ) );
+            Term idTerm = new Term( IdField, "" );
+            TermDocs termDocs = reader.termDocs();
+            try
+            {
+                for ( Long entityId : entityIds )
+                {
+                    Term term = idTerm.createTerm( Long.toString( entityId ) );
+                    termDocs.seek( term );
+                    if ( !termDocs.next() )
+                    {
+                        continue;
+                    }
+                    int docId = termDocs.doc();
+                    if ( termDocs.next() )
+                    {
+                        throw new IllegalStateException( "There should be only one hit for id " + entityId
+                                                         + ", i got at least 2" );
+                    }
+                    writer.updateDocument( term, withoutField( reader.document( docId ), fieldName ) );
+                    rewritten++;
+                }
+            }
+            finally
+            {
+                termDocs.close();
+            }
+            writer.commit();
+            writer.close();
+            writer = null;
+            return rewritten;
+        }
+        finally
+        {
+            if ( writer != null )
+            {
+                writer.rollback();
+            }
+            reader.close();
+        }
+    }
+
+    private static Document withoutField( Document original, String fieldName )
+    {
+        Document newDoc = new Document();
         for ( Fieldable f : original.getFields() )
         {
             if ( !f.name().equals( fieldName ) )
@@ -74,19 +198,42 @@ public class IndexHandler
                 newDoc.add( f );
             }
         }
-        reader.deleteDocument( docId );
-        reader.commit( null );
-        reader.close();
-
-        IndexWriter writer = new IndexWriter( dir, new IndexWriterConfig( Version.LUCENE_35, new WhitespaceAnalyzer(
-                Version.LUCENE_35 ) ) );
-        writer.addDocument( newDoc );
-        writer.commit();
-        writer.close();
+        return newDoc;
+    }
+
+    /**
+     * Runs the given transforms over every live document of this index.
+     *
+     * @see TransformPipeline
+     */
+    public TransformPipeline transform( List<DocumentTransform> transforms ) throws IOException
+    {
+        if ( snapshot )
+        {
+            IndexSnapshot.take( index );
+        }
+        TransformPipeline pipeline = new TransformPipeline( dir, transforms );
+        pipeline.setRamBufferSizeMB( ramBufferSizeMB );
+        pipeline.run();
+        return pipeline;
+    }
+
+    /**
+     * Runs the given transforms over every node and relationship index of a
+     * store, one index at a time.
+     */
+    public static void transformAll( IndexPaths paths, List<DocumentTransform> transforms ) throws Exception
+    {
+        for ( File index : paths.nodeIndexes() )
+        {
+            new IndexHandler( index ).transform( transforms );
+        }
+        for ( File index : paths.relationshipIndexes() )
+        {
+            new IndexHandler( index ).transform( transforms );
+        }
     }
 
-    // public abstract void deleteFieldFromRelationshipDocument( long relId,
-    // String fieldName );
     //
     // abstract void start();
 
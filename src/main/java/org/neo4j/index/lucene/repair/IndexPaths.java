@@ -20,6 +20,9 @@
 package org.neo4j.index.lucene.repair;
 
 import java.io.File;
+import java.io.FileFilter;
+
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
 
 public class IndexPaths
 {
@@ -27,6 +30,20 @@ public class IndexPaths
     private static final String LuceneIndexDirectoryName = "lucene";
     private static final String NodeIndexesDirectoryName = "node";
     private static final String RelationshipIndexesDirectoryName = "relationship";
+    /**
+     * Suffixes of the directories {@link IndexRebuilder} keeps next to an
+     * index, which are not indexes of their own.
+     */
+    static final String RebuildSuffix = ".rebuild";
+    static final String OldSuffix = ".old";
+    private static final FileFilter NotRebuilding = new FileFilter()
+    {
+        @Override
+        public boolean accept( File file )
+        {
+            return !file.getName().endsWith( RebuildSuffix ) && !file.getName().endsWith( OldSuffix );
+        }
+    };
 
     private final File root;
 
@@ -52,12 +69,63 @@ public class IndexPaths
 
     public File[] nodeIndexes()
     {
-        return wrap( new File( root, NodeIndexesDirectoryName ).listFiles() );
+        return wrap( new File( root, NodeIndexesDirectoryName ).listFiles( NotRebuilding ) );
     }
 
     public File[] relationshipIndexes()
     {
-        return wrap( new File( root, RelationshipIndexesDirectoryName ).listFiles() );
+        return wrap( new File( root, RelationshipIndexesDirectoryName ).listFiles( NotRebuilding ) );
+    }
+
+    /**
+     * @return whether the given index directory, as returned by
+     *         {@link #nodeIndexes()} or {@link #relationshipIndexes()}, holds
+     *         a node or a relationship index.
+     */
+    public static IndexTypeEnum typeOf( File index )
+    {
+        String parent = index.getAbsoluteFile().getParentFile().getName();
+        if ( NodeIndexesDirectoryName.equals( parent ) )
+        {
+            return IndexTypeEnum.Node;
+        }
+        if ( RelationshipIndexesDirectoryName.equals( parent ) )
+        {
+            return IndexTypeEnum.Relationship;
+        }
+        throw new IllegalArgumentException( index + " is neither a node nor a relationship index" );
+    }
+
+    /**
+     * @return the store directory the given index directory belongs to, the
+     *         inverse of {@link #forNode(String)} and
+     *         {@link #forRelationship(String)}.
+     */
+    public static File storeOf( File index )
+    {
+        // <store>/index/lucene/<type>/<name>
+        return index.getAbsoluteFile().getParentFile().getParentFile().getParentFile().getParentFile();
+    }
+
+    /**
+     * @return the sum of the lengths of the files directly under the given
+     *         index directory.
+     */
+    public static long sizeOf( File indexDir )
+    {
+        long size = 0;
+        File[] files = indexDir.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.isFile() )
+                {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
     }
 
     private File[] wrap( File[] files )
@@ -0,0 +1,370 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.CompoundFileAccessUnsafe;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Collects statistics about what is in a set of indexes, for sizing heap,
+ * page cache and merges: segments and deletions from the segment metadata,
+ * stored field bytes from the length of the .fdt files, and term and posting
+ * counts per field from one walk over the term dictionary. No document is loaded, and memory use is per field,
+ * not per term or document. Indexes are profiled concurrently.
+ */
+public class IndexProfiler
+{
+    private static final Logger log = Logger.getLogger( IndexProfiler.class.getName() );
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public void setThreads( int threads )
+    {
+        if ( threads < 1 )
+        {
+            throw new IllegalArgumentException( "Need at least one thread, got " + threads );
+        }
+        this.threads = threads;
+    }
+
+    public List<IndexProfile> profile( Collection<File> indexes ) throws IOException
+    {
+        List<Callable<IndexProfile>> jobs = new ArrayList<Callable<IndexProfile>>();
+        for ( final File index : RepairScheduler.largestFirst( indexes ) )
+        {
+            jobs.add( new Callable<IndexProfile>()
+            {
+                @Override
+                public IndexProfile call() throws IOException
+                {
+                    return profile( index );
+                }
+            } );
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, Math.max( 1, jobs.size() ) ) );
+        List<IndexProfile> result = new ArrayList<IndexProfile>( jobs.size() );
+        try
+        {
+            for ( Future<IndexProfile> future : executor.invokeAll( jobs ) )
+            {
+                result.add( future.get() );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while profiling", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Failed to profile", e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    public IndexProfile profile( File index ) throws IOException
+    {
+        IndexProfile profile = new IndexProfile( index );
+        Directory directory = FSDirectory.open( index );
+        try
+        {
+            SegmentInfos infos = new SegmentInfos();
+            infos.read( directory );
+            profile.segments = infos.size();
+            Set<String> storedFieldsFiles = new HashSet<String>();
+            for ( int i = 0; i < infos.size(); i++ )
+            {
+                SegmentInfo info = infos.info( i );
+                profile.maxDoc += info.docCount;
+                profile.deletedDocs += info.getDelCount();
+                profile.docStoreBytes += storedFieldsBytes( directory, info, storedFieldsFiles );
+            }
+            profile.bytes = IndexPaths.sizeOf( index );
+
+            IndexReader reader = IndexReader.open( directory, true );
+            try
+            {
+                profileTerms( reader, profile );
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        finally
+        {
+            directory.close();
+        }
+        log.info( "Profiled " + index.getAbsolutePath() + ", " + profile.maxDoc + " documents in "
+                  + profile.segments + " segments, " + profile.fields.size() + " fields" );
+        return profile;
+    }
+
+    /**
+     * @param counted the .fdt files already counted, since segments can share
+     *            one doc store.
+     * @return the length of the stored fields file of the segment, which is
+     *         in its compound file, in the compound file of a shared doc store
+     *         or on its own, unless it was counted already.
+     */
+    private static long storedFieldsBytes( Directory directory, SegmentInfo info, Set<String> counted )
+            throws IOException
+    {
+        String segment;
+        String compoundFile = null;
+        if ( info.getDocStoreOffset() != -1 )
+        {
+            segment = info.getDocStoreSegment();
+            if ( info.getDocStoreIsCompoundFile() )
+            {
+                compoundFile = IndexFileNames.segmentFileName( segment,
+                        IndexFileNames.COMPOUND_FILE_STORE_EXTENSION );
+            }
+        }
+        else
+        {
+            segment = info.name;
+            if ( info.getUseCompoundFile() )
+            {
+                compoundFile = IndexFileNames.segmentFileName( segment, IndexFileNames.COMPOUND_FILE_EXTENSION );
+            }
+        }
+        String storedFields = IndexFileNames.segmentFileName( segment, IndexFileNames.FIELDS_EXTENSION );
+        if ( !counted.add( storedFields ) )
+        {
+            return 0;
+        }
+        if ( compoundFile != null )
+        {
+            return CompoundFileAccessUnsafe.fileLength( directory, compoundFile, storedFields );
+        }
+        return directory.fileExists( storedFields ) ? directory.fileLength( storedFields ) : 0;
+    }
+
+    private void profileTerms( IndexReader reader, IndexProfile profile ) throws IOException
+    {
+        TermEnum terms = reader.terms();
+        try
+        {
+            FieldProfile field = null;
+            while ( terms.next() )
+            {
+                Term term = terms.term();
+                // terms come sorted by field
+                if ( field == null || !field.name.equals( term.field() ) )
+                {
+                    field = new FieldProfile( term.field() );
+                    profile.fields.put( field.name, field );
+                }
+                int docFreq = terms.docFreq();
+                field.terms++;
+                field.postings += docFreq;
+                field.maxDocFreq = Math.max( field.maxDocFreq, docFreq );
+                field.termChars += term.text().length();
+            }
+        }
+        finally
+        {
+            terms.close();
+        }
+    }
+
+    /**
+     * Writes the profiles as JSON lines, one line per index followed by one
+     * per field of that index.
+     */
+    public static void writeReport( List<IndexProfile> profiles, Writer out ) throws IOException
+    {
+        for ( IndexProfile profile : profiles )
+        {
+            StringBuilder line = new StringBuilder( "{\"index\":" );
+            DamageReportWriter.json( line, profile.index.getAbsolutePath() );
+            line.append( ",\"segments\":" ).append( profile.segments );
+            line.append( ",\"maxDoc\":" ).append( profile.maxDoc );
+            line.append( ",\"deletedDocs\":" ).append( profile.deletedDocs );
+            line.append( ",\"deletedRatio\":" ).append(
+                    String.format( Locale.ROOT, "%.4f", profile.getDeletedRatio() ) );
+            line.append( ",\"bytes\":" ).append( profile.bytes );
+            line.append( ",\"docStoreBytes\":" ).append( profile.docStoreBytes );
+            line.append( ",\"docStoreBytesPerDoc\":" ).append(
+                    String.format( Locale.ROOT, "%.1f", profile.getDocStoreBytesPerDoc() ) );
+            line.append( ",\"fields\":" ).append( profile.fields.size() ).append( "}\n" );
+            for ( FieldProfile field : profile.fields.values() )
+            {
+                line.append( "{\"index\":" );
+                DamageReportWriter.json( line, profile.index.getAbsolutePath() );
+                line.append( ",\"field\":" );
+                DamageReportWriter.json( line, field.name );
+                line.append( ",\"terms\":" ).append( field.terms );
+                line.append( ",\"postings\":" ).append( field.postings );
+                line.append( ",\"maxDocFreq\":" ).append( field.maxDocFreq );
+                line.append( ",\"termChars\":" ).append( field.termChars ).append( "}\n" );
+            }
+            out.write( line.toString() );
+        }
+        out.flush();
+    }
+
+    public static class IndexProfile
+    {
+        private final File index;
+        private int segments;
+        private long maxDoc;
+        private long deletedDocs;
+        private long bytes;
+        private long docStoreBytes;
+        private final Map<String, FieldProfile> fields = new TreeMap<String, FieldProfile>();
+
+        IndexProfile( File index )
+        {
+            this.index = index;
+        }
+
+        public File getIndex()
+        {
+            return index;
+        }
+
+        public int getSegments()
+        {
+            return segments;
+        }
+
+        public long getMaxDoc()
+        {
+            return maxDoc;
+        }
+
+        public long getDeletedDocs()
+        {
+            return deletedDocs;
+        }
+
+        public double getDeletedRatio()
+        {
+            return maxDoc == 0 ? 0 : deletedDocs / (double) maxDoc;
+        }
+
+        /**
+         * @return the bytes of all files of the index.
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return the bytes of the stored fields, the .fdt files.
+         */
+        public long getDocStoreBytes()
+        {
+            return docStoreBytes;
+        }
+
+        public double getDocStoreBytesPerDoc()
+        {
+            return maxDoc == 0 ? 0 : docStoreBytes / (double) maxDoc;
+        }
+
+        public Map<String, FieldProfile> getFields()
+        {
+            return fields;
+        }
+    }
+
+    public static class FieldProfile
+    {
+        private final String name;
+        private long terms;
+        private long postings;
+        private int maxDocFreq;
+        private long termChars;
+
+        FieldProfile( String name )
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the number of distinct terms, the cardinality of the field.
+         */
+        public long getTerms()
+        {
+            return terms;
+        }
+
+        /**
+         * @return the sum of the document frequencies of the terms. Includes
+         *         deleted documents until they are merged away.
+         */
+        public long getPostings()
+        {
+            return postings;
+        }
+
+        public int getMaxDocFreq()
+        {
+            return maxDocFreq;
+        }
+
+        public long getTermChars()
+        {
+            return termChars;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.Version;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+import org.neo4j.kernel.EmbeddedReadOnlyGraphDatabase;
+
+/**
+ * Rebuilds one exact index from the properties of the nodes or relationships
+ * in the store, for when the indexed values were also set as properties.
+ * Which entity is indexed under which key, and whether with a numeric value,
+ * is read from the live documents of the existing index, including those
+ * that lost their _id_ and that {@link IdRecovery} resolves to their entity.
+ * Each of these entities gets a document with those keys and the current
+ * values of its properties for them. Only exact indexes can be rebuilt, the
+ * values of fulltext indexes are analyzed with a configuration this tool does
+ * not know.
+ * <p>
+ * The id space is split between a number of threads, each writing its own
+ * partial index, which are then merged with
+ * {@link IndexWriter#addIndexes(Directory...)} into a fresh directory that
+ * replaces the old index. The old index is moved next to it, to
+ * &lt;name&gt;.old, and kept there until the next rebuild, which puts it back
+ * first if the previous one stopped between the two renames.
+ * <p>
+ * The database must not be running, it is opened read only for the scan and
+ * shut down before the swap.
+ */
+public class IndexRebuilder
+{
+    private static final Logger log = Logger.getLogger( IndexRebuilder.class.getName() );
+    private static final String IdField = "_id_";
+    private static final String StartNodeField = "_start_node_id_";
+    private static final String EndNodeField = "_end_node_id_";
+
+    private final File storeDir;
+    private final IndexTypeEnum type;
+    private final String indexName;
+    private final Set<String> keys;
+    private final Map<String, IndexedKey> indexedKeys = new LinkedHashMap<String, IndexedKey>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double ramBufferSizeMB = 64;
+    private long documents;
+
+    /**
+     * @param keys the keys to index, or an empty collection to use all the
+     *            keys found in the existing index.
+     */
+    public IndexRebuilder( File storeDir, IndexTypeEnum type, String indexName, Collection<String> keys )
+    {
+        this.storeDir = storeDir;
+        this.type = type;
+        this.indexName = indexName;
+        this.keys = new LinkedHashSet<String>( keys );
+    }
+
+    public void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+    public void setRamBufferSizeMB( double ramBufferSizeMB )
+    {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+    }
+
+    public void rebuild() throws IOException
+    {
+        File index = indexDirectory();
+        restoreInterruptedSwap( index );
+        OpenBitSet indexed = readIndexedKeys( index, new IdRecovery( storeDir, type, indexName ).resolveDamaged() );
+        log.info( "Rebuilding " + index.getAbsolutePath() + " for keys " + indexedKeys.values() + " and "
+                  + indexed.cardinality() + " entities using " + threads + " threads" );
+        InUseRecords inUse = InUseRecords.forType( storeDir, type );
+        File rebuilt = new File( index.getParentFile(), index.getName() + IndexPaths.RebuildSuffix );
+        deleteRecursively( rebuilt );
+
+        GraphDatabaseService db = new EmbeddedReadOnlyGraphDatabase( storeDir.getAbsolutePath() );
+        List<File> parts;
+        try
+        {
+            refuseNonExact( db );
+            parts = buildParts( db, inUse, indexed, rebuilt );
+        }
+        finally
+        {
+            db.shutdown();
+        }
+        merge( parts, rebuilt );
+        swap( index, rebuilt );
+        log.info( "Rebuilt " + index.getAbsolutePath() + " with " + documents + " documents, the old index is kept at "
+                  + oldIndexOf( index ) + " until the next rebuild" );
+    }
+
+    public long getDocumentCount()
+    {
+        return documents;
+    }
+
+    private File indexDirectory()
+    {
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        return type == IndexTypeEnum.Node ? paths.forNode( indexName ) : paths.forRelationship( indexName );
+    }
+
+    /**
+     * Reads which entity is indexed under which key, and with what type of
+     * value, from the stored fields of the live documents of the index. Fails
+     * on analyzed fields, since only exact indexes can be rebuilt.
+     *
+     * @param recovered the damaged documents resolved to their entity.
+     * @return the entities with a live document.
+     */
+    private OpenBitSet readIndexedKeys( File index, IdRecovery.Resolved recovered ) throws IOException
+    {
+        OpenBitSet entities = new OpenBitSet();
+        IndexReader reader = IndexReader.open( FSDirectory.open( index ), true );
+        try
+        {
+            for ( int i = 0; i < reader.maxDoc(); i++ )
+            {
+                if ( reader.isDeleted( i ) )
+                {
+                    continue;
+                }
+                Document doc = reader.document( i );
+                long entity = entityOf( doc, i, recovered );
+                if ( entity < 0 )
+                {
+                    continue;
+                }
+                entities.set( entity );
+                for ( Fieldable field : doc.getFields() )
+                {
+                    if ( isInternal( field.name() ) || !field.isIndexed()
+                         || ( !keys.isEmpty() && !keys.contains( field.name() ) ) )
+                    {
+                        continue;
+                    }
+                    NumericField.DataType numericType = field instanceof NumericField ? ( (NumericField) field )
+                            .getDataType() : null;
+                    if ( numericType == null && field.isTokenized() )
+                    {
+                        throw new IllegalStateException( index.getAbsolutePath() + " has analyzed field "
+                                                         + field.name() + ", only exact indexes can be rebuilt" );
+                    }
+                    String signature = field.name() + "/" + numericType;
+                    IndexedKey key = indexedKeys.get( signature );
+                    if ( key == null )
+                    {
+                        key = new IndexedKey( field.name(), numericType );
+                        indexedKeys.put( signature, key );
+                    }
+                    key.entities.set( entity );
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return entities;
+    }
+
+    private long entityOf( Document doc, int docId, IdRecovery.Resolved recovered )
+    {
+        String id = doc.get( IdField );
+        if ( id == null )
+        {
+            return recovered.entityOf( docId );
+        }
+        try
+        {
+            return Long.parseLong( id );
+        }
+        catch ( NumberFormatException e )
+        {
+            log.warning( "Ignoring document " + docId + " of " + indexName + " with _id_ " + id );
+            return -1;
+        }
+    }
+
+    private void refuseNonExact( GraphDatabaseService db )
+    {
+        IndexManager indexes = db.index();
+        Map<String, String> config;
+        if ( type == IndexTypeEnum.Node && indexes.existsForNodes( indexName ) )
+        {
+            config = indexes.getConfiguration( indexes.forNodes( indexName ) );
+        }
+        else if ( type == IndexTypeEnum.Relationship && indexes.existsForRelationships( indexName ) )
+        {
+            config = indexes.getConfiguration( indexes.forRelationships( indexName ) );
+        }
+        else
+        {
+            return;
+        }
+        if ( !"exact".equals( config.get( "type" ) ) )
+        {
+            throw new IllegalStateException( indexName + " is configured as " + config
+                                             + ", only exact indexes can be rebuilt" );
+        }
+    }
+
+    private static boolean isInternal( String field )
+    {
+        return field.startsWith( "_" ) && field.endsWith( "_" );
+    }
+
+    private List<File> buildParts( GraphDatabaseService db, InUseRecords inUse, OpenBitSet indexed, File rebuilt )
+            throws IOException
+    {
+        long highId = inUse.getHighId();
+        int parts = (int) Math.max( 1, Math.min( threads, highId ) );
+        long chunk = ( highId + parts - 1 ) / parts;
+        List<PartBuilder> builders = new ArrayList<PartBuilder>();
+        List<File> partDirs = new ArrayList<File>();
+        for ( int i = 0; i < parts; i++ )
+        {
+            File partDir = new File( rebuilt, "part-" + i );
+            partDirs.add( partDir );
+            builders.add( new PartBuilder( db, inUse, indexed, partDir, i * chunk, Math.min( highId,
+                    ( i + 1 ) * chunk ) ) );
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( parts );
+        try
+        {
+            for ( Future<Long> future : executor.invokeAll( builders ) )
+            {
+                documents += future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while rebuilding " + indexName, e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Failed to rebuild " + indexName, e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return partDirs;
+    }
+
+    private void merge( List<File> parts, File rebuilt ) throws IOException
+    {
+        Directory[] partDirectories = new Directory[parts.size()];
+        for ( int i = 0; i < partDirectories.length; i++ )
+        {
+            partDirectories[i] = FSDirectory.open( parts.get( i ) );
+        }
+        IndexWriter writer = new IndexWriter( FSDirectory.open( rebuilt ), writerConfig() );
+        try
+        {
+            writer.addIndexes( partDirectories );
+            writer.commit();
+        }
+        finally
+        {
+            writer.close();
+        }
+        for ( int i = 0; i < partDirectories.length; i++ )
+        {
+            partDirectories[i].close();
+            deleteRecursively( parts.get( i ) );
+        }
+    }
+
+    static File oldIndexOf( File index )
+    {
+        return new File( index.getParentFile(), index.getName() + IndexPaths.OldSuffix );
+    }
+
+    /**
+     * Puts the old index back if an earlier rebuild stopped after moving it
+     * out of the way and before moving the rebuilt one in.
+     */
+    private static void restoreInterruptedSwap( File index ) throws IOException
+    {
+        File old = oldIndexOf( index );
+        if ( index.exists() || !old.exists() )
+        {
+            return;
+        }
+        if ( !old.renameTo( index ) )
+        {
+            throw new IOException( "Could not move the old index " + old + " of an interrupted rebuild back to "
+                                   + index );
+        }
+        log.warning( "Moved the old index " + old + " of an interrupted rebuild back to " + index );
+    }
+
+    /**
+     * Moves the old index to &lt;name&gt;.old, replacing the one the previous
+     * rebuild kept, and the rebuilt one in its place.
+     */
+    private static void swap( File index, File rebuilt ) throws IOException
+    {
+        File old = oldIndexOf( index );
+        deleteRecursively( old );
+        if ( index.exists() && !index.renameTo( old ) )
+        {
+            throw new IOException( "Could not move " + index + " out of the way to " + old );
+        }
+        if ( !rebuilt.renameTo( index ) )
+        {
+            throw new IOException( "Could not move rebuilt index " + rebuilt + " to " + index + ", the old index is at "
+                                   + old + " and the next rebuild puts it back" );
+        }
+    }
+
+    private IndexWriterConfig writerConfig()
+    {
+        return new IndexWriterConfig( Version.LUCENE_35, new WhitespaceAnalyzer( Version.LUCENE_35 ) )
+                .setRAMBufferSizeMB( ramBufferSizeMB );
+    }
+
+    static void deleteRecursively( File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                deleteRecursively( child );
+            }
+        }
+        file.delete();
+    }
+
+    Document documentFor( PropertyContainer entity, long id )
+    {
+        Document doc = null;
+        for ( IndexedKey key : indexedKeys.values() )
+        {
+            if ( !key.entities.get( id ) )
+            {
+                continue;
+            }
+            Object value = entity.getProperty( key.name, null );
+            if ( value == null )
+            {
+                continue;
+            }
+            if ( doc == null )
+            {
+                doc = new Document();
+                doc.add( new Field( IdField, Long.toString( id ), Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+                if ( entity instanceof Relationship )
+                {
+                    Relationship relationship = (Relationship) entity;
+                    doc.add( new Field( StartNodeField, Long.toString( relationship.getStartNode().getId() ),
+                            Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+                    doc.add( new Field( EndNodeField, Long.toString( relationship.getEndNode().getId() ),
+                            Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+                }
+            }
+            if ( value.getClass().isArray() )
+            {
+                for ( int i = 0; i < Array.getLength( value ); i++ )
+                {
+                    doc.add( key.fieldFor( Array.get( value, i ) ) );
+                }
+            }
+            else
+            {
+                doc.add( key.fieldFor( value ) );
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * A key of the existing index, the type of value it was indexed with and
+     * the entities indexed under it. A key with both numeric and string
+     * values is two of these.
+     */
+    private static class IndexedKey
+    {
+        private final String name;
+        private final NumericField.DataType numericType;
+        private final OpenBitSet entities = new OpenBitSet();
+
+        IndexedKey( String name, NumericField.DataType numericType )
+        {
+            this.name = name;
+            this.numericType = numericType;
+        }
+
+        Fieldable fieldFor( Object value )
+        {
+            if ( numericType == null || !( value instanceof Number ) )
+            {
+                return new Field( name, value.toString(), Field.Store.YES, Field.Index.NOT_ANALYZED );
+            }
+            Number number = (Number) value;
+            NumericField field = new NumericField( name, Field.Store.YES, true );
+            switch ( numericType )
+            {
+            case INT:
+                return field.setIntValue( number.intValue() );
+            case LONG:
+                return field.setLongValue( number.longValue() );
+            case FLOAT:
+                return field.setFloatValue( number.floatValue() );
+            default:
+                return field.setDoubleValue( number.doubleValue() );
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return numericType == null ? name : name + " (" + numericType.name().toLowerCase() + ")";
+        }
+    }
+
+    /**
+     * Writes the documents for the entities with ids in [from, to) into a
+     * partial index of its own.
+     */
+    private class PartBuilder implements Callable<Long>
+    {
+        private final GraphDatabaseService db;
+        private final InUseRecords inUse;
+        private final OpenBitSet indexed;
+        private final File partDir;
+        private final long from;
+        private final long to;
+
+        PartBuilder( GraphDatabaseService db, InUseRecords inUse, OpenBitSet indexed, File partDir, long from,
+                long to )
+        {
+            this.db = db;
+            this.inUse = inUse;
+            this.indexed = indexed;
+            this.partDir = partDir;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Long call() throws IOException
+        {
+            long written = 0;
+            IndexWriter writer = new IndexWriter( FSDirectory.open( partDir ), writerConfig() );
+            try
+            {
+                for ( long id = from; id < to; id++ )
+                {
+                    if ( !indexed.get( id ) || !inUse.isInUse( id ) )
+                    {
+                        continue;
+                    }
+                    PropertyContainer entity;
+                    try
+                    {
+                        entity = type == IndexTypeEnum.Node ? db.getNodeById( id ) : db.getRelationshipById( id );
+                    }
+                    catch ( NotFoundException e )
+                    {
+                        continue;
+                    }
+                    Document doc = documentFor( entity, id );
+                    if ( doc != null )
+                    {
+                        writer.addDocument( doc );
+                        written++;
+                    }
+                }
+                writer.commit();
+            }
+            finally
+            {
+                writer.close();
+            }
+            return written;
+        }
+    }
+}
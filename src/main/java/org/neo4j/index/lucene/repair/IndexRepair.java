@@ -21,34 +21,97 @@ package org.neo4j.index.lucene.repair;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
 import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.OpenBitSet;
 
 public class IndexRepair
 {
     private static final Logger log = Logger.getLogger( IndexRepair.class.getName() );
     private static final String IdField = "_id_";
+    private static final double MB = 1024 * 1024;
+    private static final FieldSelector AllFields = new FieldSelector()
+    {
+        @Override
+        public FieldSelectorResult accept( String fieldName )
+        {
+            return FieldSelectorResult.LOAD;
+        }
+    };
 
     private final File dir;
-    private final Collection<Document> damagedDocs;
+    private final DirectoryStrategy strategy;
+    private final MeteredDirectory directory;
     private final IndexReader reader;
 
+    private int damagedDocs;
     private int deletedDocs;
     private int scannedDocs;
     private boolean deleteDamaged;
+    private int scanThreads;
+    private boolean detectFromPostings;
+    private OpenBitSet hasId;
+    private File spillFile;
+    private DamagedDocumentSpill spill;
+    private DamageReportWriter report;
+    private boolean logDamagedFields;
+    private RepairProgress progress;
+    private boolean incremental;
+    private int skippedDocs;
+    private int checkpointDocs;
+    private long checkpointMillis;
+    private boolean resume;
+    private ResumeState resumed;
+    private boolean snapshot;
+    private final long openNanos;
+    private final double bytesPerDoc;
+    // the part of directory.getBytesRead() already passed on to progress
+    private long bytesPublished;
 
     public IndexRepair( File indexDir ) throws IOException
+    {
+        this( indexDir, DirectoryStrategy.FS, null );
+    }
+
+    /**
+     * Opens the index with the given strategy, with its reads held to the
+     * rate of the limiter if it is not null.
+     */
+    public IndexRepair( File indexDir, DirectoryStrategy strategy, IoRateLimiter limiter ) throws IOException
     {
         dir = indexDir;
-        damagedDocs = new HashSet<Document>();
-        reader = IndexReader.open( FSDirectory.open( indexDir ), false /*read only*/);
+        this.strategy = strategy;
+        long start = System.nanoTime();
+        directory = strategy.open( indexDir, limiter );
+        reader = IndexReader.open( directory, false /*read only*/);
+        openNanos = System.nanoTime() - start;
+        bytesPerDoc = reader.maxDoc() == 0 ? 0 : IndexPaths.sizeOf( indexDir ) / (double) reader.maxDoc();
         deleteDamaged = false;
+        scanThreads = 1;
+        logDamagedFields = true;
+        progress = new RepairProgress();
+    }
+
+    public File getIndexDirectory()
+    {
+        return dir;
     }
 
     public void setDeleteDamaged( boolean deleteDamaged )
@@ -61,33 +124,278 @@ public class IndexRepair
         return deleteDamaged;
     }
 
+    /**
+     * Sets the number of threads {@link #scan()} uses. With more than one
+     * thread the index is split by segment, and big segments further by
+     * document id range, and the parts are scanned concurrently. Deletions
+     * are still applied from the calling thread and committed once.
+     */
+    public void setScanThreads( int scanThreads )
+    {
+        if ( scanThreads < 1 )
+        {
+            throw new IllegalArgumentException( "Need at least one scan thread, got " + scanThreads );
+        }
+        this.scanThreads = scanThreads;
+    }
+
+    public int getScanThreads()
+    {
+        return scanThreads;
+    }
+
+    /**
+     * If set, damaged documents are found from the postings of the _id_ field
+     * instead of by loading the stored fields of every document. Only the
+     * documents that have no _id_ term are then loaded, for reporting. This
+     * relies on _id_ being indexed as well as stored, which is how the
+     * Neo4j lucene index writes it.
+     */
+    public void setDetectFromPostings( boolean detectFromPostings )
+    {
+        this.detectFromPostings = detectFromPostings;
+    }
+
+    public boolean getDetectFromPostings()
+    {
+        return detectFromPostings;
+    }
+
+    /**
+     * If set, the stored fields of every damaged document are written to
+     * this file while scanning. Read it back with
+     * {@link DamagedDocumentSpill#replay(File, DamagedDocumentSpill.Visitor)}.
+     */
+    public void setSpillFile( File spillFile )
+    {
+        this.spillFile = spillFile;
+    }
+
+    public File getSpillFile()
+    {
+        return spillFile;
+    }
+
+    /**
+     * Sends a record for every damaged document to the given report. The
+     * report is shared, it is not closed by this repair.
+     */
+    public void setReportWriter( DamageReportWriter report )
+    {
+        this.report = report;
+    }
+
+    /**
+     * Whether the fields of every damaged document are written to the log,
+     * which is the default. With many damaged documents prefer a
+     * {@link DamageReportWriter} and turn this off.
+     */
+    public void setLogDamagedFields( boolean logDamagedFields )
+    {
+        this.logDamagedFields = logDamagedFields;
+    }
+
+    public boolean getLogDamagedFields()
+    {
+        return logDamagedFields;
+    }
+
+    /**
+     * Sets the progress this repair reports its counters and phase timings
+     * to, typically one shared by all repairs of a run.
+     */
+    public void setProgress( RepairProgress progress )
+    {
+        this.progress = progress;
+    }
+
+    /**
+     * If set, the per segment results of every scan are kept in a checkpoint
+     * file in the index directory, and segments that were clean and have not
+     * changed since are not scanned again.
+     */
+    public void setIncremental( boolean incremental )
+    {
+        this.incremental = incremental;
+    }
+
+    public boolean getIncremental()
+    {
+        return incremental;
+    }
+
+    /**
+     * Makes the scan commit the deletions made so far, and record how far it
+     * has come, every docs documents or every millis milliseconds, whichever
+     * comes first. Zero turns either off. Without checkpoints everything is
+     * committed once at the end.
+     */
+    public void setCheckpointInterval( int docs, long millis )
+    {
+        this.checkpointDocs = docs;
+        this.checkpointMillis = millis;
+    }
+
+    /**
+     * If set, a scan that was interrupted after a checkpoint continues from
+     * there, as long as nothing else has written to the index since.
+     */
+    public void setResume( boolean resume )
+    {
+        this.resume = resume;
+    }
+
+    public boolean getResume()
+    {
+        return resume;
+    }
+
+    /**
+     * If set, a scan that deletes first takes an {@link IndexSnapshot} of the
+     * commit it starts from, unless it resumes an earlier scan of which a
+     * snapshot already exists.
+     */
+    public void setSnapshot( boolean snapshot )
+    {
+        this.snapshot = snapshot;
+    }
+
+    public boolean getSnapshot()
+    {
+        return snapshot;
+    }
+
     public void scan() throws IOException
     {
+        progress.phase( RepairProgress.Phase.OPEN, openNanos );
         log.info( "Opened index at " + dir.getAbsolutePath() + ", it contains " + reader.maxDoc()
                   + " documents. Iterating over them" );
-        for ( int i = 0; i < reader.maxDoc(); i++ )
+        if ( detectFromPostings )
         {
-            scannedDocs++;
-            if ( reader.isDeleted( i ) )
+            hasId = documentsWithId( reader );
+        }
+        if ( spillFile != null )
+        {
+            spill = new DamagedDocumentSpill( spillFile );
+        }
+        List<ScanRange> segments = ScanRange.segmentsOf( reader );
+        List<ScanRange> toScan = segments;
+        if ( incremental )
+        {
+            toScan = changedSegments( segments, ScanCheckpoint.load( dir ) );
+            progress.skipped( (long) ( skippedDocs * bytesPerDoc ) );
+        }
+        List<RangeScan> scans = new ArrayList<RangeScan>();
+        for ( ScanRange range : ScanRange.split( toScan, reader.maxDoc(), scanThreads ) )
+        {
+            scans.add( new RangeScan( range ) );
+        }
+        if ( resume )
+        {
+            resumeFrom( ResumeState.load( dir ), scans );
+        }
+        if ( snapshot && deleteDamaged && !( resumed != null && IndexSnapshot.exists( dir ) ) )
+        {
+            IndexSnapshot.take( dir, reader.getIndexCommit() );
+        }
+        try
+        {
+            while ( !allDone( scans ) )
             {
-                deletedDocs++;
-                continue;
+                long phaseStart = System.nanoTime();
+                startRound( scans );
+                if ( scanThreads == 1 || scans.size() < 2 )
+                {
+                    for ( RangeScan scan : scans )
+                    {
+                        scan.call();
+                    }
+                }
+                else
+                {
+                    scanConcurrently( scans );
+                }
+                phase( RepairProgress.Phase.SCAN, phaseStart );
+                if ( !allDone( scans ) )
+                {
+                    checkpoint( scans );
+                }
             }
-            Document current = reader.document( i );
-            if ( isDamaged( current ) )
+        }
+        finally
+        {
+            if ( spill != null )
             {
-                handleDamaged( reader, i, current );
+                spill.close();
             }
         }
+        long phaseStart = System.nanoTime();
+        applyDeletions( scans );
+        for ( RangeScan scan : scans )
+        {
+            scannedDocs += scan.scanned;
+            deletedDocs += scan.deleted;
+            damagedDocs += (int) scan.damaged.cardinality();
+        }
+        progress.damaged( damagedDocs );
+        if ( resumed != null )
+        {
+            scannedDocs += (int) resumed.getScanned();
+            damagedDocs += (int) resumed.getDamaged();
+            deletedDocs += (int) resumed.getDeleted();
+        }
+        phaseStart = phase( RepairProgress.Phase.DELETE, phaseStart );
         reader.commit( null );
+        phaseStart = phase( RepairProgress.Phase.COMMIT, phaseStart );
+        if ( incremental )
+        {
+            storeCheckpoint( segments, scans );
+        }
+        ResumeState.clear( dir );
         reader.close();
+        publishBytesRead();
+        phase( RepairProgress.Phase.CLOSE, phaseStart );
         log.info( "Index " + dir.getAbsolutePath() + " done. Scanned " + scannedDocs
-                  + " documents, there were " + deletedDocs + " deleted ones which were ignored" );
+                  + " documents, there were " + deletedDocs + " deleted ones which were ignored"
+                  + ( skippedDocs > 0 ? ", skipped " + skippedDocs + " in unchanged segments" : "" ) );
+        log.info( String.format( "Read %.1f MB from %s with %s, %.1f MB/s", directory.getBytesRead() / MB,
+                dir.getAbsolutePath(), strategy, directory.getThroughput() / MB ) );
+    }
+
+    /**
+     * @return the bytes read from the index files so far, see
+     *         {@link MeteredDirectory}.
+     */
+    public long getBytesRead()
+    {
+        return directory.getBytesRead();
+    }
+
+    private synchronized void publishBytesRead()
+    {
+        long read = directory.getBytesRead();
+        progress.read( read - bytesPublished );
+        bytesPublished = read;
+    }
+
+    public DirectoryStrategy getDirectoryStrategy()
+    {
+        return strategy;
+    }
+
+    /**
+     * @return the number of documents not scanned because they are in
+     *         segments the checkpoint of an earlier incremental scan shows as
+     *         clean and unchanged.
+     */
+    public int getSkippedCount()
+    {
+        return skippedDocs;
     }
 
     public int getDamagedCount()
     {
-        return damagedDocs.size();
+        return damagedDocs;
     }
 
     public int getTotalCount()
@@ -95,22 +403,382 @@ public class IndexRepair
         return scannedDocs;
     }
 
+    private void resumeFrom( ResumeState state, List<RangeScan> scans ) throws IOException
+    {
+        if ( state == null )
+        {
+            return;
+        }
+        long generation = reader.getIndexCommit().getGeneration();
+        if ( state.getGeneration() != generation )
+        {
+            log.warning( "Not resuming scan of " + dir.getAbsolutePath() + ", the index has changed since generation "
+                         + state.getGeneration() + ", it is now at " + generation );
+            return;
+        }
+        resumed = state;
+        int resumedDocs = 0;
+        for ( RangeScan scan : scans )
+        {
+            int position = state.resumePosition( scan.range );
+            resumedDocs += position - scan.range.getStart();
+            scan.position = position;
+            scan.deletedThrough = position - scan.range.getStart();
+            scan.resumed = position > scan.range.getStart();
+        }
+        log.info( "Resuming scan of " + dir.getAbsolutePath() + ", " + resumedDocs
+                  + " documents were scanned by an earlier run" );
+    }
+
+    private boolean allDone( List<RangeScan> scans )
+    {
+        for ( RangeScan scan : scans )
+        {
+            if ( !scan.isDone() )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets how far every range may get before the next checkpoint. The
+     * documents of a checkpoint interval are shared evenly between the ranges
+     * that still have work left.
+     */
+    private void startRound( List<RangeScan> scans )
+    {
+        int remaining = 0;
+        for ( RangeScan scan : scans )
+        {
+            remaining += scan.isDone() ? 0 : 1;
+        }
+        int docs = checkpointDocs > 0 ? Math.max( 1, checkpointDocs / Math.max( 1, remaining ) ) : Integer.MAX_VALUE;
+        long deadline = checkpointMillis > 0 ? System.currentTimeMillis() + checkpointMillis : Long.MAX_VALUE;
+        for ( RangeScan scan : scans )
+        {
+            scan.startRound( docs, deadline );
+        }
+    }
+
+    /**
+     * Deletes the damaged documents found since the last time, if deleting.
+     */
+    private void applyDeletions( List<RangeScan> scans ) throws IOException
+    {
+        int deletedNow = 0;
+        for ( RangeScan scan : scans )
+        {
+            int scannedUpTo = scan.position - scan.range.getStart();
+            if ( deleteDamaged )
+            {
+                int start = scan.range.getStart();
+                for ( int i = scan.damaged.nextSetBit( scan.deletedThrough ); i != -1 && i < scannedUpTo;
+                      i = scan.damaged.nextSetBit( i + 1 ) )
+                {
+                    reader.deleteDocument( start + i );
+                    deletedNow++;
+                }
+            }
+            scan.deletedThrough = scannedUpTo;
+        }
+        progress.deleted( deletedNow );
+    }
+
+    private void checkpoint( List<RangeScan> scans ) throws IOException
+    {
+        long phaseStart = System.nanoTime();
+        applyDeletions( scans );
+        phaseStart = phase( RepairProgress.Phase.DELETE, phaseStart );
+        reader.commit( null );
+        phase( RepairProgress.Phase.COMMIT, phaseStart );
+
+        long scanned = resumed == null ? 0 : resumed.getScanned();
+        long damaged = resumed == null ? 0 : resumed.getDamaged();
+        long deleted = resumed == null ? 0 : resumed.getDeleted();
+        int[][] scannedRanges = new int[scans.size()][];
+        for ( int i = 0; i < scannedRanges.length; i++ )
+        {
+            RangeScan scan = scans.get( i );
+            scanned += scan.scanned;
+            damaged += scan.damaged.cardinality();
+            deleted += scan.deleted;
+            scannedRanges[i] = new int[] { scan.range.getStart(), scan.position };
+        }
+        ResumeState.store( dir, reader.getIndexCommit().getGeneration(), scanned, damaged, deleted, scannedRanges );
+        log.info( "Checkpoint for " + dir.getAbsolutePath() + " after " + scanned + " documents" );
+    }
+
+    private List<ScanRange> changedSegments( List<ScanRange> segments, ScanCheckpoint checkpoint )
+    {
+        List<ScanRange> result = new ArrayList<ScanRange>();
+        for ( ScanRange segment : segments )
+        {
+            if ( checkpoint.isCleanAndUnchanged( segment.getSegment(), segment.size(),
+                    segment.getSegmentDeletedDocs() ) )
+            {
+                skippedDocs += segment.size();
+            }
+            else
+            {
+                result.add( segment );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records every segment of the reader, with the damage found in it by
+     * this scan, or as clean if it was skipped as such.
+     */
+    private void storeCheckpoint( List<ScanRange> segments, List<RangeScan> scans ) throws IOException
+    {
+        Map<String, Integer> damagedPerSegment = new HashMap<String, Integer>();
+        for ( RangeScan scan : scans )
+        {
+            String segment = scan.range.getSegment();
+            Integer sofar = damagedPerSegment.get( segment );
+            if ( scan.resumed || ( sofar != null && sofar < 0 ) )
+            {
+                // part of it was scanned by an earlier run, whose damage we do not know per segment
+                damagedPerSegment.put( segment, -1 );
+                continue;
+            }
+            damagedPerSegment.put( segment, ( sofar == null ? 0 : sofar ) + (int) scan.damaged.cardinality() );
+        }
+        ScanCheckpoint checkpoint = ScanCheckpoint.create( dir );
+        for ( ScanRange segment : segments )
+        {
+            Integer damaged = damagedPerSegment.get( segment.getSegment() );
+            int damagedCount = damaged == null ? 0 : damaged;
+            int deletedAfter = segment.getSegmentDeletedDocs() + ( deleteDamaged ? Math.max( 0, damagedCount ) : 0 );
+            checkpoint.setSegment( segment.getSegment(), segment.size(), deletedAfter, deleteDamaged ? 0
+                    : damagedCount );
+        }
+        checkpoint.store();
+    }
+
+    /**
+     * Adds the time since phaseStart to the given phase.
+     *
+     * @return now, the start of the next phase.
+     */
+    private long phase( RepairProgress.Phase phase, long phaseStart )
+    {
+        long now = System.nanoTime();
+        progress.phase( phase, now - phaseStart );
+        return now;
+    }
+
+    private void scanConcurrently( List<RangeScan> scans ) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( scanThreads, scans.size() ) );
+        try
+        {
+            for ( Future<Void> future : executor.invokeAll( scans ) )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while scanning " + dir.getAbsolutePath(), e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Failed to scan " + dir.getAbsolutePath(), e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Walks the postings of every _id_ term and marks the documents they
+     * point to. Deleted documents are skipped by {@link TermDocs}, so any live
+     * document not marked in the result is missing its id.
+     */
+    static OpenBitSet documentsWithId( IndexReader reader ) throws IOException
+    {
+        OpenBitSet result = new OpenBitSet( reader.maxDoc() );
+        int[] docs = new int[256];
+        int[] freqs = new int[256];
+        TermEnum terms = reader.terms( new Term( IdField, "" ) );
+        TermDocs termDocs = reader.termDocs();
+        try
+        {
+            do
+            {
+                Term term = terms.term();
+                if ( term == null || !IdField.equals( term.field() ) )
+                {
+                    break;
+                }
+                termDocs.seek( terms );
+                int read;
+                while ( ( read = termDocs.read( docs, freqs ) ) > 0 )
+                {
+                    for ( int i = 0; i < read; i++ )
+                    {
+                        result.fastSet( docs[i] );
+                    }
+                }
+            }
+            while ( terms.next() );
+        }
+        finally
+        {
+            termDocs.close();
+            terms.close();
+        }
+        return result;
+    }
+
     private boolean isDamaged( Document doc )
     {
         return doc.getFieldable( IdField ) == null;
     }
 
-    private void handleDamaged( IndexReader reader, int docId, Document doc ) throws IOException
+    /**
+     * @return whether anything is interested in the contents of damaged
+     *         documents. If not, postings based detection never loads them.
+     */
+    private boolean reportsContents()
+    {
+        return logDamagedFields || spill != null || report != null;
+    }
+
+    private void handleDamaged( ScanRange range, int docId, Document doc ) throws IOException
+    {
+        if ( logDamagedFields )
+        {
+            StringBuilder fields = new StringBuilder( "Damaged document " + docId + " detected, the fields are" );
+            for ( Fieldable field : doc.getFields() )
+            {
+                fields.append( String.format( "%n\t%s : %s", field.name(), field.stringValue() ) );
+            }
+            log.info( fields.toString() );
+        }
+        if ( spill != null )
+        {
+            spill.write( docId, doc );
+        }
+        if ( report != null )
+        {
+            report.report( dir, range.getSegment(), docId, doc );
+        }
+    }
+
+    /**
+     * Scans one {@link ScanRange} and marks the damaged documents in it in a
+     * bitset local to the range, so that they can be deleted at the next
+     * checkpoint, or once all ranges are done. The range is scanned in rounds
+     * that end at a checkpoint. The bitset is one bit per document of the range however many
+     * of them turn out to be damaged.
+     */
+    private class RangeScan implements Callable<Void>
     {
-        log.info( "Damaged document detected, the fields are" );
-        for ( Fieldable field : doc.getFields() )
+        private static final int ProgressInterval = 4096;
+
+        private final ScanRange range;
+        private final OpenBitSet damaged;
+        private int scanned;
+        private int deleted;
+        // the next document to scan
+        private int position;
+        // damaged documents below this offset into the range are deleted
+        private int deletedThrough;
+        private boolean resumed;
+        private int roundEnd;
+        private long deadline;
+
+        RangeScan( ScanRange range )
+        {
+            this.range = range;
+            this.damaged = new OpenBitSet( range.size() );
+            this.position = range.getStart();
+        }
+
+        boolean isDone()
         {
-            log.info( String.format( "\t%s : %s", field.name(), field.stringValue() ) );
+            return position >= range.getEnd();
         }
-        damagedDocs.add( doc );
-        if ( deleteDamaged )
+
+        void startRound( int docs, long deadline )
         {
-            reader.deleteDocument( docId );
+            this.roundEnd = (int) Math.min( range.getEnd(), (long) position + docs );
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Void call() throws IOException
+        {
+            int unpublished = 0;
+            try
+            {
+                while ( position < roundEnd )
+                {
+                    scanned++;
+                    scanDocument( position );
+                    position++;
+                    if ( ++unpublished == ProgressInterval )
+                    {
+                        progress.scanned( unpublished );
+                        publishBytesRead();
+                        unpublished = 0;
+                        if ( System.currentTimeMillis() > deadline )
+                        {
+                            break;
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                progress.scanned( unpublished );
+                publishBytesRead();
+            }
+            return null;
+        }
+
+        private void scanDocument( int i ) throws IOException
+        {
+            if ( reader.isDeleted( i ) )
+            {
+                deleted++;
+                return;
+            }
+            Document current;
+            if ( hasId != null )
+            {
+                if ( hasId.fastGet( i ) )
+                {
+                    return;
+                }
+                if ( !reportsContents() )
+                {
+                    damaged.fastSet( i - range.getStart() );
+                    return;
+                }
+                current = reader.document( i, AllFields );
+            }
+            else
+            {
+                current = reader.document( i );
+                if ( !isDamaged( current ) )
+                {
+                    return;
+                }
+            }
+            handleDamaged( range, i, current );
+            damaged.fastSet( i - range.getStart() );
         }
     }
 }
@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * A copy of the files of one commit of an index, kept in a directory inside
+ * the index directory, where Lucene does not look. Lucene never changes a
+ * file once written, so the files are hard linked rather than copied, which
+ * costs a directory entry per file whatever their size. Where hard links are
+ * not available the files are copied.
+ * <p>
+ * Rolling back removes every file the index has gained since the snapshot and
+ * links the snapshot files back in. Only one snapshot is kept per index,
+ * taking a new one replaces the old. Neither must be done while the database
+ * is running.
+ */
+public class IndexSnapshot
+{
+    private static final Logger log = Logger.getLogger( IndexSnapshot.class.getName() );
+
+    static final String DirectoryName = "repair-snapshot";
+    static final String ManifestName = "snapshot.properties";
+    private static final String WriteLock = "write.lock";
+    // files per ln invocation, to stay well below the argument length limit
+    private static final int LinkBatch = 256;
+
+    private IndexSnapshot()
+    {
+    }
+
+    /**
+     * Snapshots the latest commit of the index.
+     */
+    public static void take( File indexDir ) throws IOException
+    {
+        IndexReader reader = IndexReader.open( FSDirectory.open( indexDir ), true );
+        try
+        {
+            take( indexDir, reader.getIndexCommit() );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Snapshots the given commit of the index, which must be kept alive, for
+     * example by an open reader, while this runs.
+     */
+    public static void take( File indexDir, IndexCommit commit ) throws IOException
+    {
+        File snapshot = new File( indexDir, DirectoryName );
+        if ( snapshot.exists() )
+        {
+            IndexRebuilder.deleteRecursively( snapshot );
+        }
+        if ( !snapshot.mkdir() )
+        {
+            throw new IOException( "Could not create snapshot directory " + snapshot );
+        }
+        Collection<String> names = commit.getFileNames();
+        List<File> files = new ArrayList<File>( names.size() );
+        for ( String name : names )
+        {
+            files.add( new File( indexDir, name ) );
+        }
+        long start = System.currentTimeMillis();
+        link( files, snapshot );
+        Properties manifest = new Properties();
+        manifest.setProperty( "generation", String.valueOf( commit.getGeneration() ) );
+        manifest.setProperty( "files", String.valueOf( files.size() ) );
+        ScanCheckpoint.storeProperties( new File( snapshot, ManifestName ), manifest,
+                "Written by IndexSnapshot, the files of this directory are those of the commit" );
+        log.info( "Took snapshot of " + indexDir.getAbsolutePath() + " at generation " + commit.getGeneration()
+                  + ", " + files.size() + " files in " + ( System.currentTimeMillis() - start ) + " ms" );
+    }
+
+    public static boolean exists( File indexDir )
+    {
+        return new File( new File( indexDir, DirectoryName ), ManifestName ).isFile();
+    }
+
+    /**
+     * @return the commit generation the snapshot of the index was taken at.
+     */
+    public static long generationOf( File indexDir ) throws IOException
+    {
+        File manifest = new File( new File( indexDir, DirectoryName ), ManifestName );
+        String generation = ScanCheckpoint.loadProperties( manifest ).getProperty( "generation" );
+        if ( generation == null )
+        {
+            throw new IOException( "There is no snapshot for " + indexDir.getAbsolutePath() );
+        }
+        return Long.parseLong( generation );
+    }
+
+    /**
+     * Restores the index to the commit of its snapshot. The snapshot is kept.
+     */
+    public static void rollback( File indexDir ) throws IOException
+    {
+        long generation = generationOf( indexDir );
+        File snapshot = new File( indexDir, DirectoryName );
+        Set<String> inSnapshot = new HashSet<String>();
+        List<File> missing = new ArrayList<File>();
+        for ( File file : snapshot.listFiles() )
+        {
+            if ( !file.getName().equals( ManifestName ) )
+            {
+                inSnapshot.add( file.getName() );
+                if ( !new File( indexDir, file.getName() ).exists() )
+                {
+                    missing.add( file );
+                }
+            }
+        }
+        int removed = 0;
+        for ( File file : indexDir.listFiles() )
+        {
+            if ( file.isFile() && !inSnapshot.contains( file.getName() ) && !file.getName().equals( WriteLock ) )
+            {
+                if ( !file.delete() )
+                {
+                    throw new IOException( "Could not remove " + file + " while rolling back" );
+                }
+                removed++;
+            }
+        }
+        link( missing, indexDir );
+        log.info( "Rolled " + indexDir.getAbsolutePath() + " back to generation " + generation + ", removed "
+                  + removed + " files and restored " + missing.size() );
+    }
+
+    public static void delete( File indexDir ) throws IOException
+    {
+        File snapshot = new File( indexDir, DirectoryName );
+        if ( snapshot.exists() )
+        {
+            IndexRebuilder.deleteRecursively( snapshot );
+        }
+    }
+
+    /**
+     * Hard links the files into the target directory, under the same names,
+     * or copies them if linking fails.
+     */
+    static void link( List<File> files, File targetDir ) throws IOException
+    {
+        for ( int from = 0; from < files.size(); from += LinkBatch )
+        {
+            List<File> batch = files.subList( from, Math.min( files.size(), from + LinkBatch ) );
+            if ( !hardLink( batch, targetDir ) )
+            {
+                for ( File file : batch )
+                {
+                    File target = new File( targetDir, file.getName() );
+                    if ( !target.exists() )
+                    {
+                        copy( file, target );
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean hardLink( List<File> files, File targetDir )
+    {
+        List<String> command = new ArrayList<String>( files.size() + 2 );
+        command.add( "ln" );
+        for ( File file : files )
+        {
+            command.add( file.getAbsolutePath() );
+        }
+        command.add( targetDir.getAbsolutePath() );
+        try
+        {
+            Process ln = new ProcessBuilder( command ).redirectErrorStream( true ).start();
+            ln.getOutputStream().close();
+            byte[] discard = new byte[1024];
+            while ( ln.getInputStream().read( discard ) != -1 )
+            {
+                // drain, so ln never blocks on a full pipe
+            }
+            ln.getInputStream().close();
+            return ln.waitFor() == 0;
+        }
+        catch ( IOException e )
+        {
+            // no ln on this platform
+            return false;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void copy( File source, File target ) throws IOException
+    {
+        FileChannel in = new FileInputStream( source ).getChannel();
+        try
+        {
+            FileChannel out = new FileOutputStream( target ).getChannel();
+            try
+            {
+                long position = 0;
+                long size = in.size();
+                while ( position < size )
+                {
+                    position += in.transferTo( position, size - position, out );
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
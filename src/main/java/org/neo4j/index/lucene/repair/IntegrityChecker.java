@@ -0,0 +1,438 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.index.CheckIndex;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+
+/**
+ * Checks the files of the current commit of a number of indexes before
+ * anything opens them for a scan, and tells which indexes are safe to scan.
+ * <p>
+ * Lucene 3 files carry no checksums of their own, only the segments file
+ * does, which reading the commit verifies. So every file of the commit is
+ * read once, with the {@link DirectoryStrategy} and {@link IoRateLimiter} of
+ * the scan, and its CRC32 recorded in repair-checksums.properties in the
+ * index directory. Lucene never changes a
+ * file once written, so a later check finding a different length or checksum
+ * for a file of the same name has found corruption. Besides that the stored
+ * field index length is checked against the document count of its segment,
+ * and the first and last document of every segment is read. Optionally
+ * Lucene's own {@link CheckIndex} is run too, which reads everything and
+ * takes as long as a scan.
+ * <p>
+ * Reading the commits, checksumming the files and the per index checks are
+ * each spread over a pool of threads, files of all indexes together.
+ */
+public class IntegrityChecker
+{
+    private static final Logger log = Logger.getLogger( IntegrityChecker.class.getName() );
+
+    static final String ChecksumsName = "repair-checksums.properties";
+    private static final int FieldsIndexHeader = 4;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean deep;
+    private DirectoryStrategy strategy = DirectoryStrategy.FS;
+    private IoRateLimiter limiter;
+
+    public void setThreads( int threads )
+    {
+        if ( threads < 1 )
+        {
+            throw new IllegalArgumentException( "Need at least one thread, got " + threads );
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @see IndexRepair#IndexRepair(File, DirectoryStrategy, IoRateLimiter)
+     */
+    public void setDirectoryStrategy( DirectoryStrategy strategy, IoRateLimiter limiter )
+    {
+        this.strategy = strategy;
+        this.limiter = limiter;
+    }
+
+    /**
+     * If set, also runs {@link CheckIndex} over every index.
+     */
+    public void setDeep( boolean deep )
+    {
+        this.deep = deep;
+    }
+
+    public List<Report> verify( Collection<File> indexes ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List<Report> reports = new ArrayList<Report>();
+            List<Callable<Report>> commits = new ArrayList<Callable<Report>>();
+            for ( final File index : indexes )
+            {
+                commits.add( new Callable<Report>()
+                {
+                    @Override
+                    public Report call()
+                    {
+                        return readCommit( index );
+                    }
+                } );
+            }
+            reports.addAll( all( executor, commits ) );
+
+            List<Callable<Void>> files = new ArrayList<Callable<Void>>();
+            for ( final Report report : reports )
+            {
+                for ( final String name : report.lengths.keySet() )
+                {
+                    files.add( new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                        {
+                            checksum( report, name );
+                            return null;
+                        }
+                    } );
+                }
+            }
+            all( executor, files );
+
+            List<Callable<Void>> structures = new ArrayList<Callable<Void>>();
+            for ( final Report report : reports )
+            {
+                structures.add( new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        checkStructure( report );
+                        return null;
+                    }
+                } );
+            }
+            all( executor, structures );
+
+            long bytes = 0;
+            for ( Report report : reports )
+            {
+                bytes += report.bytes;
+            }
+            long millis = Math.max( 1, System.currentTimeMillis() - start );
+            log.info( String.format( "Verified %d indexes, %d MB in %d ms, %.1f MB/s", reports.size(),
+                    bytes / ( 1024 * 1024 ), millis, bytes * 1000d / millis / ( 1024 * 1024 ) ) );
+            return reports;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> List<T> all( ExecutorService executor, List<? extends Callable<T>> jobs ) throws IOException
+    {
+        List<T> result = new ArrayList<T>( jobs.size() );
+        try
+        {
+            for ( Future<T> future : executor.invokeAll( jobs ) )
+            {
+                result.add( future.get() );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while verifying", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IOException( "Failed to verify", e.getCause() );
+        }
+        return result;
+    }
+
+    /**
+     * Reads the segments file of the latest commit, which verifies its
+     * checksum, and finds the files of the commit and their lengths.
+     */
+    private Report readCommit( File index )
+    {
+        Report report = new Report( index );
+        try
+        {
+            Directory directory = strategy.open( index, limiter );
+            try
+            {
+                SegmentInfos infos = new SegmentInfos();
+                infos.read( directory );
+                for ( String name : infos.files( directory, true ) )
+                {
+                    File file = new File( index, name );
+                    if ( !file.isFile() )
+                    {
+                        report.problem( name + " of the commit is missing" );
+                        continue;
+                    }
+                    report.lengths.put( name, file.length() );
+                }
+                for ( int i = 0; i < infos.size(); i++ )
+                {
+                    SegmentInfo info = infos.info( i );
+                    report.docCounts.put( info.name, info.docCount );
+                    checkFieldsIndexLength( report, info );
+                }
+            }
+            finally
+            {
+                directory.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            report.problem( "cannot read the commit: " + e );
+        }
+        return report;
+    }
+
+    /**
+     * A stored field index has a header and one pointer per document of the
+     * segment. Only checked when it is a file of its own, not in a compound
+     * file or shared with other segments.
+     */
+    private static void checkFieldsIndexLength( Report report, SegmentInfo info )
+    {
+        if ( info.getDocStoreOffset() != -1 )
+        {
+            return;
+        }
+        Long length = report.lengths.get( info.name + ".fdx" );
+        if ( length != null && length != FieldsIndexHeader + 8L * info.docCount )
+        {
+            report.problem( info.name + ".fdx is " + length + " bytes, expected "
+                            + ( FieldsIndexHeader + 8L * info.docCount ) + " for " + info.docCount + " documents" );
+        }
+    }
+
+    private void checksum( Report report, String name )
+    {
+        try
+        {
+            Directory directory = strategy.open( report.index, limiter );
+            long crc;
+            try
+            {
+                crc = crcOf( directory, name );
+            }
+            finally
+            {
+                directory.close();
+            }
+            synchronized ( report )
+            {
+                report.checksums.put( name, crc );
+                report.bytes += report.lengths.get( name );
+            }
+        }
+        catch ( IOException e )
+        {
+            report.problem( "cannot read " + name + ": " + e );
+        }
+    }
+
+    static long crcOf( Directory directory, String name ) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        IndexInput in = directory.openInput( name, chunk.length );
+        try
+        {
+            for ( long remaining = in.length(); remaining > 0; remaining -= chunk.length )
+            {
+                int length = (int) Math.min( chunk.length, remaining );
+                in.readBytes( chunk, 0, length );
+                crc.update( chunk, 0, length );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Compares the checksums with the recorded ones and opens the index to
+     * read the first and last document of every segment, and runs
+     * {@link CheckIndex} if deep. Records the checksums if all is well.
+     */
+    private void checkStructure( Report report )
+    {
+        File manifest = new File( report.index, ChecksumsName );
+        Properties recorded = ScanCheckpoint.loadProperties( manifest );
+        for ( Map.Entry<String, Long> checksum : report.checksums.entrySet() )
+        {
+            String name = checksum.getKey();
+            String expected = recorded.getProperty( name );
+            String actual = report.lengths.get( name ) + "," + checksum.getValue();
+            if ( expected != null && !expected.equals( actual ) )
+            {
+                report.problem( name + " has changed since it was last verified, length,crc was " + expected
+                                + " and is " + actual );
+            }
+        }
+        if ( !report.isSafe() )
+        {
+            return;
+        }
+        try
+        {
+            Directory directory = strategy.open( report.index, limiter );
+            try
+            {
+                IndexReader reader = IndexReader.open( directory, true );
+                try
+                {
+                    for ( ScanRange segment : ScanRange.segmentsOf( reader ) )
+                    {
+                        Integer docCount = report.docCounts.get( segment.getSegment() );
+                        if ( docCount != null && docCount != segment.size() )
+                        {
+                            report.problem( "segment " + segment.getSegment() + " has " + segment.size()
+                                            + " documents, the commit says " + docCount );
+                        }
+                        if ( segment.size() > 0 )
+                        {
+                            reader.document( segment.getStart() );
+                            reader.document( segment.getEnd() - 1 );
+                        }
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+                if ( deep )
+                {
+                    CheckIndex.Status status = new CheckIndex( directory ).checkIndex();
+                    if ( !status.clean )
+                    {
+                        report.problem( "CheckIndex found " + status.numBadSegments + " broken segments" );
+                    }
+                }
+            }
+            finally
+            {
+                directory.close();
+            }
+        }
+        catch ( Exception e )
+        {
+            report.problem( "cannot read the index: " + e );
+        }
+        if ( report.isSafe() )
+        {
+            Properties checksums = new Properties();
+            for ( Map.Entry<String, Long> checksum : report.checksums.entrySet() )
+            {
+                checksums.setProperty( checksum.getKey(), report.lengths.get( checksum.getKey() ) + ","
+                                                          + checksum.getValue() );
+            }
+            try
+            {
+                ScanCheckpoint.storeProperties( manifest, checksums,
+                        "Written by IntegrityChecker, length,crc32 of every file of the last verified commit" );
+            }
+            catch ( IOException e )
+            {
+                log.warning( "Could not record checksums of " + report.index.getAbsolutePath() + ": " + e );
+            }
+        }
+    }
+
+    /**
+     * The outcome of verifying one index.
+     */
+    public static class Report
+    {
+        private final File index;
+        private final Map<String, Long> lengths = new HashMap<String, Long>();
+        private final Map<String, Long> checksums = new HashMap<String, Long>();
+        private final Map<String, Integer> docCounts = new HashMap<String, Integer>();
+        private final List<String> problems = Collections.synchronizedList( new ArrayList<String>() );
+        private long bytes;
+
+        Report( File index )
+        {
+            this.index = index;
+        }
+
+        void problem( String problem )
+        {
+            problems.add( problem );
+        }
+
+        public File getIndex()
+        {
+            return index;
+        }
+
+        public boolean isSafe()
+        {
+            return problems.isEmpty();
+        }
+
+        public List<String> getProblems()
+        {
+            return problems;
+        }
+
+        /**
+         * @return the bytes of the files that were checksummed.
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+/**
+ * Keeps the reads of all the directories sharing it below a number of bytes
+ * per second, so the tool can run next to a production database on the same
+ * disks. Readers ask for permission after the fact, in chunks, and are put to
+ * sleep for as long as it takes the budget to catch up.
+ */
+public class IoRateLimiter
+{
+    private final long bytesPerSecond;
+    private long nextFreeNanos;
+
+    public IoRateLimiter( long bytesPerSecond )
+    {
+        if ( bytesPerSecond < 1 )
+        {
+            throw new IllegalArgumentException( "Need a positive rate, got " + bytesPerSecond );
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.nextFreeNanos = System.nanoTime();
+    }
+
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Accounts for bytes that were just read and sleeps until the rate is
+     * met again. If interrupted, returns early with the interrupt flag set.
+     */
+    public void pause( long bytes )
+    {
+        long wait;
+        synchronized ( this )
+        {
+            long now = System.nanoTime();
+            wait = nextFreeNanos - now;
+            nextFreeNanos = Math.max( now, nextFreeNanos ) + bytes * 1000000000L / bytesPerSecond;
+        }
+        if ( wait > 0 )
+        {
+            try
+            {
+                Thread.sleep( wait / 1000000, (int) ( wait % 1000000 ) );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
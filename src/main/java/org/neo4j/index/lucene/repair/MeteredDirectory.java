@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+/**
+ * Wraps a {@link Directory}, counting the bytes read through it and
+ * optionally holding reads to the rate of an {@link IoRateLimiter}. Inputs
+ * read straight from the delegate's, which keeps its own buffering, or none
+ * for memory mapped files, so the strategies compare as they are. Bytes are
+ * counted in a plain field of each input and accounted for in chunks, so the
+ * count of an input that is cloned and never closed, as Lucene does, can lag
+ * behind by up to a chunk.
+ */
+public class MeteredDirectory extends Directory
+{
+    static final int ChunkSize = 64 * 1024;
+
+    private final Directory delegate;
+    private final int readBufferSize;
+    private final IoRateLimiter limiter;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final long openedNanos = System.nanoTime();
+
+    MeteredDirectory( Directory delegate, int readBufferSize, IoRateLimiter limiter )
+    {
+        this.delegate = delegate;
+        this.readBufferSize = readBufferSize;
+        this.limiter = limiter;
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the bytes read per second since this directory was opened.
+     */
+    public double getThroughput()
+    {
+        long nanos = System.nanoTime() - openedNanos;
+        return nanos == 0 ? 0 : bytesRead.get() * 1000000000d / nanos;
+    }
+
+    @Override
+    public IndexInput openInput( String name ) throws IOException
+    {
+        return new MeteredInput( readBufferSize > 0 ? delegate.openInput( name, readBufferSize )
+                : delegate.openInput( name ) );
+    }
+
+    @Override
+    public IndexInput openInput( String name, int bufferSize ) throws IOException
+    {
+        return new MeteredInput( delegate.openInput( name, Math.max( bufferSize, readBufferSize ) ) );
+    }
+
+    @Override
+    public String[] listAll() throws IOException
+    {
+        return delegate.listAll();
+    }
+
+    @Override
+    public boolean fileExists( String name ) throws IOException
+    {
+        return delegate.fileExists( name );
+    }
+
+    @Override
+    @SuppressWarnings( "deprecation" )
+    public long fileModified( String name ) throws IOException
+    {
+        return delegate.fileModified( name );
+    }
+
+    @Override
+    @SuppressWarnings( "deprecation" )
+    public void touchFile( String name ) throws IOException
+    {
+        delegate.touchFile( name );
+    }
+
+    @Override
+    public void deleteFile( String name ) throws IOException
+    {
+        delegate.deleteFile( name );
+    }
+
+    @Override
+    public long fileLength( String name ) throws IOException
+    {
+        return delegate.fileLength( name );
+    }
+
+    @Override
+    public IndexOutput createOutput( String name ) throws IOException
+    {
+        return delegate.createOutput( name );
+    }
+
+    @Override
+    public void sync( Collection<String> names ) throws IOException
+    {
+        delegate.sync( names );
+    }
+
+    @Override
+    public Lock makeLock( String name )
+    {
+        return delegate.makeLock( name );
+    }
+
+    @Override
+    public void clearLock( String name ) throws IOException
+    {
+        delegate.clearLock( name );
+    }
+
+    @Override
+    public void setLockFactory( LockFactory lockFactory ) throws IOException
+    {
+        delegate.setLockFactory( lockFactory );
+    }
+
+    @Override
+    public LockFactory getLockFactory()
+    {
+        return delegate.getLockFactory();
+    }
+
+    @Override
+    public String getLockID()
+    {
+        return delegate.getLockID();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        delegate.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Metered(" + delegate + ")";
+    }
+
+    /**
+     * Hands every read to the delegate and counts what it read, without a
+     * buffer of its own. The reads of numbers are passed on too, so the
+     * delegate's faster versions of them are kept.
+     */
+    private class MeteredInput extends IndexInput
+    {
+        private IndexInput in;
+        private int unaccounted;
+
+        MeteredInput( IndexInput in )
+        {
+            super( "MeteredInput(" + in + ")" );
+            this.in = in;
+        }
+
+        private void account( int bytes )
+        {
+            unaccounted += bytes;
+            if ( unaccounted >= ChunkSize )
+            {
+                flush();
+            }
+        }
+
+        private void flush()
+        {
+            if ( unaccounted > 0 )
+            {
+                bytesRead.addAndGet( unaccounted );
+                if ( limiter != null )
+                {
+                    limiter.pause( unaccounted );
+                }
+                unaccounted = 0;
+            }
+        }
+
+        @Override
+        public byte readByte() throws IOException
+        {
+            byte b = in.readByte();
+            account( 1 );
+            return b;
+        }
+
+        @Override
+        public void readBytes( byte[] b, int offset, int length ) throws IOException
+        {
+            in.readBytes( b, offset, length );
+            account( length );
+        }
+
+        @Override
+        public void readBytes( byte[] b, int offset, int length, boolean useBuffer ) throws IOException
+        {
+            in.readBytes( b, offset, length, useBuffer );
+            account( length );
+        }
+
+        @Override
+        public short readShort() throws IOException
+        {
+            short value = in.readShort();
+            account( 2 );
+            return value;
+        }
+
+        @Override
+        public int readInt() throws IOException
+        {
+            int value = in.readInt();
+            account( 4 );
+            return value;
+        }
+
+        @Override
+        public long readLong() throws IOException
+        {
+            long value = in.readLong();
+            account( 8 );
+            return value;
+        }
+
+        @Override
+        public int readVInt() throws IOException
+        {
+            long start = in.getFilePointer();
+            int value = in.readVInt();
+            account( (int) ( in.getFilePointer() - start ) );
+            return value;
+        }
+
+        @Override
+        public long readVLong() throws IOException
+        {
+            long start = in.getFilePointer();
+            long value = in.readVLong();
+            account( (int) ( in.getFilePointer() - start ) );
+            return value;
+        }
+
+        @Override
+        public long getFilePointer()
+        {
+            return in.getFilePointer();
+        }
+
+        @Override
+        public void seek( long pos ) throws IOException
+        {
+            in.seek( pos );
+        }
+
+        @Override
+        public long length()
+        {
+            return in.length();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            flush();
+            in.close();
+        }
+
+        @Override
+        public Object clone()
+        {
+            MeteredInput clone = (MeteredInput) super.clone();
+            clone.in = (IndexInput) in.clone();
+            clone.unaccounted = 0;
+            return clone;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A set of non negative longs, open addressing with linear probing in a
+ * direct buffer of fixed size. It never grows, so it never uses more than the
+ * memory it is created with; {@link #add(long)} reports when it is full.
+ * <p>
+ * Direct buffers are only freed by the garbage collector, so a set hands its
+ * buffer back on {@link #close()} and the next set of the same size created
+ * on that thread reuses it. A worker scanning one index after the other keeps
+ * one buffer.
+ */
+class OffHeapLongSet
+{
+    private static final long Empty = -1;
+    private static final double MaxLoad = 0.75;
+    // a direct buffer is at most 2GB, i.e. 2^28 longs, stay below that
+    private static final int MaxCapacity = 1 << 27;
+    private static final ThreadLocal<ByteBuffer> spare = new ThreadLocal<ByteBuffer>();
+
+    private final ByteBuffer buffer;
+    private final LongBuffer slots;
+    private final int mask;
+    private final int maxSize;
+    private int size;
+
+    /**
+     * @param memoryBudget the number of bytes the set may use, rounded down
+     *            to a power of two number of slots.
+     */
+    OffHeapLongSet( long memoryBudget )
+    {
+        long wanted = Math.max( 16, Math.min( memoryBudget / 8, MaxCapacity ) );
+        int capacity = Integer.highestOneBit( (int) wanted );
+        ByteBuffer reused = spare.get();
+        if ( reused != null && reused.capacity() == capacity * 8 )
+        {
+            spare.remove();
+            buffer = reused;
+        }
+        else
+        {
+            buffer = ByteBuffer.allocateDirect( capacity * 8 ).order( ByteOrder.nativeOrder() );
+        }
+        slots = buffer.asLongBuffer();
+        for ( int i = 0; i < capacity; i++ )
+        {
+            slots.put( i, Empty );
+        }
+        mask = capacity - 1;
+        maxSize = (int) ( capacity * MaxLoad );
+    }
+
+    enum AddResult
+    {
+        ADDED,
+        PRESENT,
+        FULL;
+    }
+
+    AddResult add( long value )
+    {
+        if ( value < 0 )
+        {
+            throw new IllegalArgumentException( "Only non negative values, got " + value );
+        }
+        int slot = hash( value ) & mask;
+        while ( true )
+        {
+            long current = slots.get( slot );
+            if ( current == value )
+            {
+                return AddResult.PRESENT;
+            }
+            if ( current == Empty )
+            {
+                if ( size >= maxSize )
+                {
+                    return AddResult.FULL;
+                }
+                slots.put( slot, value );
+                size++;
+                return AddResult.ADDED;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Hands the buffer back for the next set created on this thread. The set
+     * must not be used afterwards.
+     */
+    void close()
+    {
+        spare.set( buffer );
+    }
+
+    private static int hash( long value )
+    {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) ( h ^ ( h >>> 32 ) );
+    }
+}
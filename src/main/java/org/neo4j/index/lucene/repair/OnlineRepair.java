@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.OpenBitSet;
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+import org.neo4j.index.impl.lucene.LuceneDataSourceAccessUnsafe;
+import org.neo4j.kernel.AbstractGraphDatabase;
+
+/**
+ * Repairs an index of a running database, through the writer of its lucene
+ * data source. Damaged documents are found with a near real time reader of
+ * that writer and deleted through it in batches, with a pause between
+ * batches to leave room for the database's own work. Nothing is committed
+ * here, the deletions become durable when the data source next commits the
+ * writer, and are lost, harmlessly, if the database dies before that.
+ * <p>
+ * A writer can only delete by term or query, and damaged documents have no
+ * _id_ term to delete by. Every batch is deleted as one query matching the
+ * exact fields of its documents, filtered to documents that have no _id_ at
+ * all, so whatever else it matches is damaged too and nothing with an id is
+ * ever deleted. The filter walks the _id_ postings of a segment once and is
+ * cached per segment, for all batches.
+ */
+public class OnlineRepair
+{
+    private static final Logger log = Logger.getLogger( OnlineRepair.class.getName() );
+    private static final String IdField = "_id_";
+
+    private final IndexWriter writer;
+    private final File dir;
+    private final String name;
+
+    private boolean deleteDamaged;
+    private int batchSize = 500;
+    private long pauseMillis = 100;
+    private DamageReportWriter report;
+    private int scannedDocs;
+    private int damagedDocs;
+    private int batches;
+    private final Filter withoutId = new CachingWrapperFilter( new WithoutIdFilter() );
+
+    public OnlineRepair( AbstractGraphDatabase db, IndexTypeEnum type, String indexName )
+    {
+        this.writer = new LuceneDataSourceAccessUnsafe( db ).getWriterFor( type, indexName );
+        IndexPaths paths = IndexPaths.fromRoot( new File( db.getStoreDir() ) );
+        this.dir = type == IndexTypeEnum.Node ? paths.forNode( indexName ) : paths.forRelationship( indexName );
+        this.name = type + " index " + indexName;
+    }
+
+    public void setDeleteDamaged( boolean deleteDamaged )
+    {
+        this.deleteDamaged = deleteDamaged;
+    }
+
+    public boolean getDeleteDamaged()
+    {
+        return deleteDamaged;
+    }
+
+    /**
+     * Sets how many damaged documents are deleted at a time. Can be no more
+     * than {@link BooleanQuery#getMaxClauseCount()}.
+     */
+    public void setBatchSize( int batchSize )
+    {
+        if ( batchSize < 1 || batchSize > BooleanQuery.getMaxClauseCount() )
+        {
+            throw new IllegalArgumentException( "Batch size must be between 1 and "
+                                                + BooleanQuery.getMaxClauseCount() + ", got " + batchSize );
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the time to sleep after every batch of deletions.
+     */
+    public void setPauseMillis( long pauseMillis )
+    {
+        this.pauseMillis = pauseMillis;
+    }
+
+    public void setReportWriter( DamageReportWriter report )
+    {
+        this.report = report;
+    }
+
+    public void repair() throws IOException
+    {
+        IndexReader reader = IndexReader.open( writer, true );
+        try
+        {
+            log.info( "Scanning live " + name + ", " + reader.maxDoc() + " documents" );
+            BooleanQuery batch = new BooleanQuery();
+            for ( int i = 0; i < reader.maxDoc(); i++ )
+            {
+                if ( reader.isDeleted( i ) )
+                {
+                    continue;
+                }
+                scannedDocs++;
+                Document doc = reader.document( i );
+                if ( doc.getFieldable( IdField ) != null )
+                {
+                    continue;
+                }
+                damagedDocs++;
+                if ( report != null )
+                {
+                    report.report( dir, "online", i, doc );
+                }
+                if ( deleteDamaged )
+                {
+                    batch.add( matching( doc ), Occur.SHOULD );
+                    if ( batch.clauses().size() == batchSize )
+                    {
+                        delete( batch );
+                        batch = new BooleanQuery();
+                    }
+                }
+            }
+            if ( !batch.clauses().isEmpty() )
+            {
+                delete( batch );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        log.info( "Live " + name + " done. Scanned " + scannedDocs + " documents, " + damagedDocs + " damaged, "
+                  + ( deleteDamaged ? "deleted in " + batches + " batches, to be committed by the database"
+                          : "none deleted" ) );
+    }
+
+    /**
+     * @return the number of documents without an _id_ a fresh near real time
+     *         reader of the writer sees. Zero after a repair that deleted,
+     *         unless more damage appeared in the meantime.
+     */
+    public int countRemainingDamaged() throws IOException
+    {
+        IndexReader reader = IndexReader.open( writer, true );
+        try
+        {
+            IndexSearcher searcher = new IndexSearcher( reader );
+            try
+            {
+                return searcher.search( new FilteredQuery( new MatchAllDocsQuery(), withoutId ), 1 ).totalHits;
+            }
+            finally
+            {
+                searcher.close();
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    public int getScannedCount()
+    {
+        return scannedDocs;
+    }
+
+    public int getDamagedCount()
+    {
+        return damagedDocs;
+    }
+
+    private void delete( BooleanQuery batch ) throws IOException
+    {
+        writer.deleteDocuments( new FilteredQuery( batch, withoutId ) );
+        batches++;
+        if ( pauseMillis > 0 )
+        {
+            try
+            {
+                Thread.sleep( pauseMillis );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( "Interrupted while repairing " + name, e );
+            }
+        }
+    }
+
+    /**
+     * @return a query for the exact, untokenized, fields of the document, or
+     *         for all documents if it has none.
+     */
+    private Query matching( Document doc )
+    {
+        BooleanQuery query = new BooleanQuery();
+        for ( Fieldable field : doc.getFields() )
+        {
+            if ( field.isIndexed() && !field.isTokenized() && field.stringValue() != null )
+            {
+                query.add( new TermQuery( new Term( field.name(), field.stringValue() ) ), Occur.MUST );
+            }
+        }
+        return query.clauses().isEmpty() ? new MatchAllDocsQuery() : query;
+    }
+
+    /**
+     * Matches the documents of a segment that have no _id_, deleted ones
+     * included.
+     */
+    private static class WithoutIdFilter extends Filter
+    {
+        @Override
+        public DocIdSet getDocIdSet( IndexReader reader ) throws IOException
+        {
+            OpenBitSet result = new OpenBitSet( reader.maxDoc() );
+            result.set( 0, reader.maxDoc() );
+            result.andNot( IndexRepair.documentsWithId( reader ) );
+            return result;
+        }
+    }
+}
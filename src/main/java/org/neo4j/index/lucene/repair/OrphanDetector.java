@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Finds documents whose _id_ points to a node or relationship that is no
+ * longer in use in the store. Only the _id_ term dictionary and postings are
+ * read, every term is checked against {@link InUseRecords}.
+ */
+public class OrphanDetector
+{
+    private static final Logger log = Logger.getLogger( OrphanDetector.class.getName() );
+    private static final String IdField = "_id_";
+
+    private final File dir;
+    private final InUseRecords inUse;
+
+    private boolean deleteOrphans;
+    private DamageReportWriter report;
+    private DirectoryStrategy strategy = DirectoryStrategy.FS;
+    private IoRateLimiter limiter;
+    private int orphanDocs;
+    private int unparsableIds;
+
+    public OrphanDetector( File indexDir, InUseRecords inUse )
+    {
+        this.dir = indexDir;
+        this.inUse = inUse;
+    }
+
+    /**
+     * @see IndexRepair#IndexRepair(File, DirectoryStrategy, IoRateLimiter)
+     */
+    public void setDirectoryStrategy( DirectoryStrategy strategy, IoRateLimiter limiter )
+    {
+        this.strategy = strategy;
+        this.limiter = limiter;
+    }
+
+    public void setDeleteOrphans( boolean deleteOrphans )
+    {
+        this.deleteOrphans = deleteOrphans;
+    }
+
+    public boolean getDeleteOrphans()
+    {
+        return deleteOrphans;
+    }
+
+    public void setReportWriter( DamageReportWriter report )
+    {
+        this.report = report;
+    }
+
+    public void scan() throws IOException
+    {
+        IndexReader reader = IndexReader.open( strategy.open( dir, limiter ), !deleteOrphans );
+        try
+        {
+            TermEnum terms = reader.terms( new Term( IdField, "" ) );
+            TermDocs termDocs = reader.termDocs();
+            try
+            {
+                do
+                {
+                    Term term = terms.term();
+                    if ( term == null || !IdField.equals( term.field() ) )
+                    {
+                        break;
+                    }
+                    long id;
+                    try
+                    {
+                        id = Long.parseLong( term.text() );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        unparsableIds++;
+                        continue;
+                    }
+                    if ( inUse.isInUse( id ) )
+                    {
+                        continue;
+                    }
+                    termDocs.seek( terms );
+                    while ( termDocs.next() )
+                    {
+                        handleOrphan( reader, termDocs.doc() );
+                    }
+                }
+                while ( terms.next() );
+            }
+            finally
+            {
+                termDocs.close();
+                terms.close();
+            }
+            if ( deleteOrphans )
+            {
+                reader.commit( null );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        log.info( "Index " + dir.getAbsolutePath() + " has " + orphanDocs
+                  + " documents pointing to entities not in use" + ( unparsableIds > 0 ? " and " + unparsableIds
+                                                                                         + " non numeric ids" : "" ) );
+    }
+
+    public int getOrphanCount()
+    {
+        return orphanDocs;
+    }
+
+    private void handleOrphan( IndexReader reader, int docId ) throws IOException
+    {
+        orphanDocs++;
+        if ( report != null )
+        {
+            report.report( dir, "orphan", docId, reader.document( docId ) );
+        }
+        if ( deleteOrphans )
+        {
+            reader.deleteDocument( docId );
+        }
+    }
+}
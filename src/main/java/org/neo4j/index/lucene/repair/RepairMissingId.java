@@ -19,8 +19,22 @@
  */
 package org.neo4j.index.lucene.repair;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
 import org.neo4j.kernel.impl.nioneo.store.NeoStore;
 
 public class RepairMissingId
@@ -28,44 +42,503 @@ public class RepairMissingId
     public static void main( String[] args ) throws Exception
     {
         boolean deleteDamaged = false;
+        String repairArgument = null;
+        Map<String, String> options = new HashMap<String, String>();
         if ( args.length < 1 )
         {
             System.err.println( "You must supply a path to the database" );
             System.exit( 1 );
         }
-        if ( args.length > 1 )
+        for ( int i = 1; i < args.length; i++ )
         {
-            deleteDamaged = "repair".equalsIgnoreCase( args[1] );
+            if ( args[i].startsWith( "--" ) )
+            {
+                parseOption( args[i], options );
+            }
+            else
+            {
+                repairArgument = args[i];
+                deleteDamaged = "repair".equalsIgnoreCase( repairArgument );
+            }
         }
         File path = new File( args[0] );
+        if ( options.containsKey( "batch" ) )
+        {
+            if ( options.containsKey( "rebuild" ) || options.containsKey( "profile" )
+                 || options.containsKey( "consistency" ) || options.containsKey( "rollback" )
+                 || options.containsKey( "export" ) || options.containsKey( "import" )
+                 || options.containsKey( "recover" ) )
+            {
+                System.err.println( "--batch only applies to scanning" );
+                System.exit( 1 );
+            }
+            List<File> stores = storesFrom( path );
+            if ( stores.isEmpty() )
+            {
+                System.err.println( "No valid graph db found in " + path.getAbsolutePath() );
+                System.exit( 1 );
+            }
+            scan( stores, options, deleteDamaged, repairArgument );
+            return;
+        }
         if ( !path.isDirectory() )
         {
             System.err.println( "You must supply a path as a first argument" );
             System.exit( 1 );
         }
-        if ( !new File( path, NeoStore.DEFAULT_NAME ).exists() )
+        if ( !isStore( path ) )
         {
             System.err.println( "You must supply a valid graph db path as a first argument" );
             System.exit( 1 );
         }
-        System.out.println( "all is well, starting scan in directory " + path.getAbsolutePath() );
+        if ( options.containsKey( "rebuild" ) )
+        {
+            rebuild( path, options );
+            return;
+        }
+        if ( options.containsKey( "recover" ) )
+        {
+            recover( path, options );
+            return;
+        }
+        if ( options.containsKey( "profile" ) )
+        {
+            profile( path, options );
+            return;
+        }
+        if ( options.containsKey( "consistency" ) )
+        {
+            checkConsistency( path, options );
+            return;
+        }
+        if ( options.containsKey( "rollback" ) )
+        {
+            rollback( path );
+            return;
+        }
+        if ( options.containsKey( "export" ) || options.containsKey( "import" ) )
+        {
+            exportOrImport( path, options );
+            return;
+        }
+        scan( Collections.singletonList( path ), options, deleteDamaged, repairArgument );
+    }
+
+    private static boolean isStore( File path )
+    {
+        return path.isDirectory() && new File( path, NeoStore.DEFAULT_NAME ).exists();
+    }
+
+    /**
+     * @return the stores in the given directory, or listed one per line in
+     *         the given file. Entries that are not a graph db are reported
+     *         and left out.
+     */
+    private static List<File> storesFrom( File path ) throws IOException
+    {
+        List<File> candidates = new ArrayList<File>();
+        if ( path.isDirectory() )
+        {
+            File[] children = path.listFiles();
+            Arrays.sort( children );
+            for ( File child : children )
+            {
+                if ( child.isDirectory() )
+                {
+                    candidates.add( child );
+                }
+            }
+        }
+        else
+        {
+            BufferedReader lines = new BufferedReader( new InputStreamReader( new FileInputStream( path ), "UTF-8" ) );
+            try
+            {
+                String line;
+                while ( ( line = lines.readLine() ) != null )
+                {
+                    if ( line.trim().length() > 0 && !line.trim().startsWith( "#" ) )
+                    {
+                        candidates.add( new File( line.trim() ) );
+                    }
+                }
+            }
+            finally
+            {
+                lines.close();
+            }
+        }
+        List<File> stores = new ArrayList<File>();
+        for ( File candidate : candidates )
+        {
+            if ( isStore( candidate ) )
+            {
+                stores.add( candidate );
+            }
+            else
+            {
+                System.err.println( "Skipping " + candidate.getAbsolutePath() + ", it is not a valid graph db path" );
+            }
+        }
+        return stores;
+    }
+
+    private static void scan( List<File> stores, Map<String, String> options, boolean deleteDamaged,
+            String repairArgument ) throws Exception
+    {
+        for ( File store : stores )
+        {
+            System.out.println( "all is well, starting scan in directory " + store.getAbsolutePath() );
+        }
         if ( deleteDamaged )
         {
-            System.out.println( "repair option was set: " + args[1]
+            System.out.println( "repair option was set: " + repairArgument
                                 + ", any documents without the id field will be deleted" );
         }
+        List<File> indexes = new ArrayList<File>();
+        for ( File store : stores )
+        {
+            indexes.addAll( indexesOf( store ) );
+        }
+
+        RepairScheduler scheduler = schedulerFrom( options, deleteDamaged );
+        if ( options.containsKey( "orphans" ) )
+        {
+            for ( File store : stores )
+            {
+                InUseRecords nodes = InUseRecords.forNodes( store );
+                InUseRecords relationships = InUseRecords.forRelationships( store );
+                System.out.println( "checking ids of " + store.getAbsolutePath() + " against " + nodes.getInUseCount()
+                                    + " nodes and " + relationships.getInUseCount() + " relationships in use" );
+                scheduler.setInUseRecords( store, nodes, relationships );
+            }
+        }
+        DamageReportWriter report = null;
+        if ( options.containsKey( "report" ) )
+        {
+            File reportFile = new File( options.get( "report" ) );
+            report = new DamageReportWriter( reportFile, reportFile.getName().endsWith( ".csv" )
+                    ? DamageReportWriter.Format.CSV : DamageReportWriter.Format.JSONL );
+            scheduler.setReportWriter( report );
+        }
+        List<RepairScheduler.Result> results;
+        scheduler.getProgress().register();
+        try
+        {
+            results = scheduler.run( indexes );
+        }
+        finally
+        {
+            scheduler.getProgress().unregister();
+            if ( report != null )
+            {
+                report.close();
+            }
+        }
+        if ( stores.size() > 1 )
+        {
+            RepairScheduler.printSummaryByStore( results, System.out );
+        }
+        RepairScheduler.printSummary( results, System.out );
+        scheduler.getProgress().printSummary( System.out );
+        for ( RepairScheduler.Result result : results )
+        {
+            if ( result.getFailure() != null )
+            {
+                System.exit( 1 );
+            }
+        }
+    }
+
+    private static void rebuild( File path, Map<String, String> options ) throws Exception
+    {
+        String[] typeAndName = options.get( "rebuild" ).split( ":", 2 );
+        IndexTypeEnum type = null;
+        if ( typeAndName.length == 2 && "node".equals( typeAndName[0] ) )
+        {
+            type = IndexTypeEnum.Node;
+        }
+        else if ( typeAndName.length == 2 && "relationship".equals( typeAndName[0] ) )
+        {
+            type = IndexTypeEnum.Relationship;
+        }
+        else
+        {
+            System.err.println( "--rebuild expects node:<index name> or relationship:<index name>" );
+            System.exit( 1 );
+        }
+        List<String> keys = new ArrayList<String>();
+        if ( options.containsKey( "keys" ) )
+        {
+            keys.addAll( Arrays.asList( options.get( "keys" ).split( "," ) ) );
+        }
+        System.out.println( "all is well, rebuilding " + options.get( "rebuild" ) + " from the store in "
+                            + path.getAbsolutePath() );
+        IndexRebuilder rebuilder = new IndexRebuilder( path, type, typeAndName[1], keys );
+        rebuilder.setThreads( intOption( options, "threads", Runtime.getRuntime().availableProcessors() ) );
+        rebuilder.rebuild();
+        System.out.println( "Rebuilt " + options.get( "rebuild" ) + " with " + rebuilder.getDocumentCount()
+                            + " documents" );
+    }
+
+    private static void recover( File path, Map<String, String> options ) throws Exception
+    {
+        String[] typeAndName = options.get( "recover" ).split( ":", 2 );
+        IndexTypeEnum type = null;
+        if ( typeAndName.length == 2 && "node".equals( typeAndName[0] ) )
+        {
+            type = IndexTypeEnum.Node;
+        }
+        else if ( typeAndName.length == 2 && "relationship".equals( typeAndName[0] ) )
+        {
+            type = IndexTypeEnum.Relationship;
+        }
+        else
+        {
+            System.err.println( "--recover expects node:<index name> or relationship:<index name>" );
+            System.exit( 1 );
+        }
+        System.out.println( "all is well, recovering the ids of damaged documents of " + options.get( "recover" )
+                            + " from the store in " + path.getAbsolutePath() );
+        IdRecovery recovery = new IdRecovery( path, type, typeAndName[1] );
+        recovery.setSnapshot( !"false".equals( options.get( "snapshot" ) ) );
+        recovery.recover();
+        System.out.println( "Recovered " + recovery.getRecoveredCount() + " of " + recovery.getDamagedCount()
+                            + " damaged documents, " + recovery.getUnmatchedCount() + " not found in the store, "
+                            + recovery.getAmbiguousCount() + " ambiguous" );
+    }
+
+    private static void checkConsistency( File path, Map<String, String> options ) throws Exception
+    {
+        List<String> keys = new ArrayList<String>();
+        if ( options.containsKey( "keys" ) )
+        {
+            keys.addAll( Arrays.asList( options.get( "keys" ).split( "," ) ) );
+        }
+        System.out.println( "all is well, checking index values against the store in " + path.getAbsolutePath() );
+        ConsistencyChecker checker = new ConsistencyChecker( path, keys );
+        checker.setThreads( intOption( options, "threads", Runtime.getRuntime().availableProcessors() ) );
+        DamageReportWriter report = null;
+        if ( options.containsKey( "report" ) )
+        {
+            File reportFile = new File( options.get( "report" ) );
+            report = new DamageReportWriter( reportFile, reportFile.getName().endsWith( ".csv" )
+                    ? DamageReportWriter.Format.CSV : DamageReportWriter.Format.JSONL );
+            checker.setReportWriter( report );
+        }
+        try
+        {
+            checker.check();
+        }
+        finally
+        {
+            if ( report != null )
+            {
+                report.close();
+            }
+        }
+        System.out.println( "Checked " + checker.getCheckedCount() + " values, " + checker.getMismatchCount()
+                            + " mismatches" );
+        for ( ConsistencyChecker.Mismatch kind : ConsistencyChecker.Mismatch.values() )
+        {
+            System.out.println( "\t" + kind.name().toLowerCase() + " : " + checker.getMismatchCount( kind ) );
+        }
+    }
+
+    private static void profile( File path, Map<String, String> options ) throws Exception
+    {
+        List<File> indexes = indexesOf( path );
+        IndexProfiler profiler = new IndexProfiler();
+        profiler.setThreads( intOption( options, "threads", Runtime.getRuntime().availableProcessors() ) );
+        List<IndexProfiler.IndexProfile> profiles = profiler.profile( indexes );
+        Writer out = options.containsKey( "report" ) ? new OutputStreamWriter( new FileOutputStream(
+                options.get( "report" ) ), "UTF-8" ) : new OutputStreamWriter( System.out, "UTF-8" );
+        try
+        {
+            IndexProfiler.writeReport( profiles, out );
+        }
+        finally
+        {
+            if ( options.containsKey( "report" ) )
+            {
+                out.close();
+            }
+        }
+    }
+
+    private static void exportOrImport( File path, Map<String, String> options ) throws Exception
+    {
+        boolean export = options.containsKey( "export" );
+        String option = export ? "export" : "import";
+        String[] typeAndName = options.get( option ).split( ":", 2 );
+        IndexPaths paths = IndexPaths.fromRoot( path );
+        File index = null;
+        if ( typeAndName.length == 2 && "node".equals( typeAndName[0] ) )
+        {
+            index = paths.forNode( typeAndName[1] );
+        }
+        else if ( typeAndName.length == 2 && "relationship".equals( typeAndName[0] ) )
+        {
+            index = paths.forRelationship( typeAndName[1] );
+        }
+        if ( export && options.containsKey( "import" ) )
+        {
+            System.err.println( "--export and --import cannot be combined" );
+            System.exit( 1 );
+        }
+        if ( index == null || !options.containsKey( "file" ) )
+        {
+            System.err.println( "--" + option + " expects node:<index name> or relationship:<index name>"
+                                + " and --file=FILE" );
+            System.exit( 1 );
+        }
+        File file = new File( options.get( "file" ) );
+        IndexExport indexExport = new IndexExport( index );
+        if ( export )
+        {
+            indexExport.setCompress( options.containsKey( "compress" ) );
+            indexExport.exportTo( file );
+            System.out.println( "Exported " + indexExport.getDocumentCount() + " documents of "
+                                + options.get( option ) + " to " + file.getAbsolutePath() + ", skipped "
+                                + indexExport.getSkippedCount() + " without an id" );
+        }
+        else
+        {
+            indexExport.setReplace( options.containsKey( "replace" ) );
+            indexExport.setRamBufferSizeMB( doubleOption( options, "ram-buffer", 512 ) );
+            indexExport.importFrom( file );
+            System.out.println( "Imported " + indexExport.getDocumentCount() + " documents from "
+                                + file.getAbsolutePath() + " into " + options.get( option ) );
+        }
+    }
+
+    private static List<File> indexesOf( File path )
+    {
         IndexPaths indexPath = IndexPaths.fromRoot( path );
-        for ( File index : indexPath.nodeIndexes() )
+        List<File> indexes = new ArrayList<File>();
+        indexes.addAll( Arrays.asList( indexPath.nodeIndexes() ) );
+        indexes.addAll( Arrays.asList( indexPath.relationshipIndexes() ) );
+        return indexes;
+    }
+
+    private static void rollback( File path ) throws Exception
+    {
+        List<File> indexes = indexesOf( path );
+        int rolledBack = 0;
+        for ( File index : indexes )
         {
-            IndexRepair repair = new IndexRepair( index );
-            repair.setDeleteDamaged( deleteDamaged );
-            repair.scan();
+            if ( IndexSnapshot.exists( index ) )
+            {
+                IndexSnapshot.rollback( index );
+                System.out.println( "Rolled " + RepairScheduler.qualifiedName( index ) + " back to generation "
+                                    + IndexSnapshot.generationOf( index ) );
+                rolledBack++;
+            }
         }
-        for ( File index : indexPath.relationshipIndexes() )
+        System.out.println( "Rolled back " + rolledBack + " of " + indexes.size() + " indexes" );
+    }
+
+    private static RepairScheduler schedulerFrom( Map<String, String> options, boolean deleteDamaged )
+    {
+        RepairScheduler scheduler = new RepairScheduler( intOption( options, "threads", 1 ), deleteDamaged );
+        scheduler.setScanThreads( intOption( options, "scan-threads", 1 ) );
+        String detection = options.containsKey( "detection" ) ? options.get( "detection" ) : "stored";
+        if ( !"stored".equals( detection ) && !"postings".equals( detection ) )
         {
-            IndexRepair repair = new IndexRepair( index );
-            repair.setDeleteDamaged( deleteDamaged );
-            repair.scan();
+            System.err.println( "--detection must be either stored or postings, got " + detection );
+            System.exit( 1 );
+        }
+        scheduler.setDetectFromPostings( "postings".equals( detection ) );
+        if ( options.containsKey( "spill-dir" ) )
+        {
+            File spillDirectory = new File( options.get( "spill-dir" ) );
+            if ( !spillDirectory.isDirectory() && !spillDirectory.mkdirs() )
+            {
+                System.err.println( "Could not create spill directory " + spillDirectory.getAbsolutePath() );
+                System.exit( 1 );
+            }
+            scheduler.setSpillDirectory( spillDirectory );
+        }
+        scheduler.setLogDamagedFields( !"false".equals( options.get( "log-fields" ) ) );
+        scheduler.setIncremental( options.containsKey( "incremental" ) );
+        scheduler.setCheckpointInterval( intOption( options, "checkpoint-docs", 0 ),
+                intOption( options, "checkpoint-seconds", 0 ) * 1000L );
+        scheduler.setResume( options.containsKey( "resume" ) );
+        scheduler.setSnapshot( !"false".equals( options.get( "snapshot" ) ) );
+        scheduler.setVerifyIntegrity( options.containsKey( "verify" ) || options.containsKey( "verify-deep" ),
+                options.containsKey( "verify-deep" ) );
+        String io = options.containsKey( "io" ) ? options.get( "io" ) : "fs";
+        try
+        {
+            scheduler.setDirectoryStrategy( DirectoryStrategy.valueOf( io.toUpperCase() ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            System.err.println( "--io must be one of fs, mmap, nio or sequential, got " + io );
+            System.exit( 1 );
+        }
+        scheduler.setCompaction( options.containsKey( "compact" ), doubleOption( options, "compact-threshold", 0.1 ),
+                intOption( options, "compact-segments", 0 ), intOption( options, "merge-threads", 1 ) );
+        scheduler.setMaxBytesPerSecond( intOption( options, "io-rate", 0 ) * 1024L * 1024L );
+        scheduler.setCheckDuplicates( options.containsKey( "duplicates" ),
+                intOption( options, "duplicates-memory", 64 ) * 1024L * 1024L );
+        if ( options.containsKey( "sample" ) )
+        {
+            scheduler.setSampling( intOption( options, "sample-size", 10000 ), doubleOption( options, "confidence",
+                    0.95 ), doubleOption( options, "sample-threshold", 0.001 ) );
+        }
+        return scheduler;
+    }
+
+    private static void parseOption( String arg, Map<String, String> options )
+    {
+        String option = arg.substring( 2 );
+        int separator = option.indexOf( '=' );
+        if ( separator == -1 )
+        {
+            options.put( option, "true" );
+        }
+        else
+        {
+            options.put( option.substring( 0, separator ), option.substring( separator + 1 ) );
+        }
+    }
+
+    private static int intOption( Map<String, String> options, String name, int defaultValue )
+    {
+        String value = options.get( name );
+        if ( value == null )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt( value );
+        }
+        catch ( NumberFormatException e )
+        {
+            System.err.println( "--" + name + " expects a number, got " + value );
+            System.exit( 1 );
+            return defaultValue;
+        }
+    }
+
+    private static double doubleOption( Map<String, String> options, String name, double defaultValue )
+    {
+        String value = options.get( name );
+        if ( value == null )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Double.parseDouble( value );
+        }
+        catch ( NumberFormatException e )
+        {
+            System.err.println( "--" + name + " expects a number, got " + value );
+            System.exit( 1 );
+            return defaultValue;
         }
     }
 }
@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters for a repair run, shared by all {@link IndexRepair}s of the
+ * run and readable over JMX while it goes on. Scanning threads count locally
+ * and publish here in batches, so the per document cost is a local
+ * increment.
+ * <p>
+ * Bytes read are estimated from how far the scan has come through each
+ * index, relative to its size on disk.
+ */
+public class RepairProgress implements RepairProgressMBean
+{
+    public static final String JmxName = "org.neo4j.index.lucene.repair:type=RepairProgress";
+
+    private static final Logger log = Logger.getLogger( RepairProgress.class.getName() );
+
+    public enum Phase
+    {
+        OPEN,
+        SCAN,
+        DELETE,
+        COMMIT,
+        CLOSE,
+        COMPACT;
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicLong bytesSkipped = new AtomicLong();
+    private final AtomicLong damaged = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicInteger indexesDone = new AtomicInteger();
+    private final AtomicInteger indexesTotal = new AtomicInteger();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray( Phase.values().length );
+    private final Set<String> current = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    private ObjectName registeredAs;
+
+    /**
+     * Tells the progress about indexes that are going to be scanned, for
+     * the estimate of the time remaining.
+     */
+    public void expect( int indexes, long bytes )
+    {
+        indexesTotal.addAndGet( indexes );
+        bytesTotal.addAndGet( bytes );
+    }
+
+    public void indexStarted( String index )
+    {
+        current.add( index );
+    }
+
+    public void indexDone( String index )
+    {
+        current.remove( index );
+        indexesDone.incrementAndGet();
+    }
+
+    public void scanned( long documents )
+    {
+        scanned.addAndGet( documents );
+    }
+
+    /**
+     * Adds bytes read from the index files, as metered by
+     * {@link MeteredDirectory#getBytesRead()}.
+     */
+    public void read( long bytes )
+    {
+        bytesRead.addAndGet( bytes );
+    }
+
+    /**
+     * Tells the progress about expected bytes that will not be read since
+     * their segments are skipped, so the estimate of the time remaining
+     * leaves them out.
+     */
+    public void skipped( long bytes )
+    {
+        bytesSkipped.addAndGet( bytes );
+    }
+
+    public void damaged( long documents )
+    {
+        damaged.addAndGet( documents );
+    }
+
+    public void deleted( long documents )
+    {
+        deleted.addAndGet( documents );
+    }
+
+    public void phase( Phase phase, long nanos )
+    {
+        phaseNanos.addAndGet( phase.ordinal(), nanos );
+    }
+
+    @Override
+    public long getDocumentsScanned()
+    {
+        return scanned.get();
+    }
+
+    @Override
+    public double getDocumentsPerSecond()
+    {
+        double seconds = ( System.nanoTime() - startNanos ) / 1e9;
+        return seconds <= 0 ? 0 : scanned.get() / seconds;
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesTotal()
+    {
+        return bytesTotal.get();
+    }
+
+    @Override
+    public long getDamagedCount()
+    {
+        return damaged.get();
+    }
+
+    @Override
+    public long getDeletedCount()
+    {
+        return deleted.get();
+    }
+
+    @Override
+    public int getIndexesDone()
+    {
+        return indexesDone.get();
+    }
+
+    @Override
+    public int getIndexesTotal()
+    {
+        return indexesTotal.get();
+    }
+
+    @Override
+    public String getCurrentIndexes()
+    {
+        return current.toString();
+    }
+
+    @Override
+    public long getEstimatedSecondsRemaining()
+    {
+        long read = bytesRead.get();
+        long remaining = bytesTotal.get() - bytesSkipped.get() - read;
+        if ( read <= 0 || remaining <= 0 )
+        {
+            return remaining <= 0 ? 0 : -1;
+        }
+        double seconds = ( System.nanoTime() - startNanos ) / 1e9;
+        return (long) ( remaining / ( read / seconds ) );
+    }
+
+    @Override
+    public String getPhaseTimings()
+    {
+        StringBuilder result = new StringBuilder();
+        for ( Phase phase : Phase.values() )
+        {
+            if ( result.length() > 0 )
+            {
+                result.append( ", " );
+            }
+            result.append( phase.name().toLowerCase() ).append( "=" )
+                    .append( phaseNanos.get( phase.ordinal() ) / 1000000 ).append( "ms" );
+        }
+        return result.toString();
+    }
+
+    public void register()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            ObjectName name = new ObjectName( JmxName );
+            if ( server.isRegistered( name ) )
+            {
+                server.unregisterMBean( name );
+            }
+            server.registerMBean( this, name );
+            registeredAs = name;
+        }
+        catch ( JMException e )
+        {
+            log.warning( "Could not register repair progress with JMX: " + e );
+        }
+    }
+
+    public void unregister()
+    {
+        if ( registeredAs == null )
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( registeredAs );
+        }
+        catch ( JMException e )
+        {
+            log.warning( "Could not unregister repair progress from JMX: " + e );
+        }
+        registeredAs = null;
+    }
+
+    public void printSummary( PrintStream out )
+    {
+        double seconds = ( System.nanoTime() - startNanos ) / 1e9;
+        out.println( String.format( "Scanned %d documents (%d MB) in %.1f s, %.0f documents/s, %d damaged, %d deleted",
+                getDocumentsScanned(), getBytesRead() / ( 1024 * 1024 ), seconds, getDocumentsPerSecond(),
+                getDamagedCount(), getDeletedCount() ) );
+        out.println( "Time per phase, summed over all threads: " + getPhaseTimings() );
+    }
+}
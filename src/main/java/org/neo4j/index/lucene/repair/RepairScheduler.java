@@ -0,0 +1,696 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+
+/**
+ * Runs {@link IndexRepair} jobs for a number of indexes on a bounded pool of
+ * worker threads. The biggest indexes (by size on disk) are started first so
+ * that a single large index does not end up running alone at the end of the
+ * run. The indexes may come from several stores, whichever thread is free
+ * takes the next index, so small stores do not leave threads idle.
+ */
+public class RepairScheduler
+{
+    private final int threads;
+    private final boolean deleteDamaged;
+    private int scanThreads = 1;
+    private boolean detectFromPostings;
+    private File spillDirectory;
+    private DamageReportWriter report;
+    private boolean logDamagedFields = true;
+    private InUseRecords nodesInUse;
+    private InUseRecords relationshipsInUse;
+    private final Map<File, InUseRecords[]> inUsePerStore = new HashMap<File, InUseRecords[]>();
+    private boolean checkDuplicates;
+    private RepairProgress progress = new RepairProgress();
+    private boolean incremental;
+    private int checkpointDocs;
+    private long checkpointMillis;
+    private boolean resume;
+    private DirectoryStrategy directoryStrategy = DirectoryStrategy.FS;
+    private IoRateLimiter rateLimiter;
+    private boolean snapshot;
+    private boolean verify;
+    private boolean verifyDeep;
+    private boolean compact;
+    private double compactThreshold;
+    private int compactSegments;
+    private int mergeThreads = 1;
+    private long duplicatesMemoryBudget = 64 * 1024 * 1024;
+    private int sampleSize;
+    private double sampleConfidence;
+    private double sampleThreshold;
+
+    public RepairScheduler( int threads, boolean deleteDamaged )
+    {
+        if ( threads < 1 )
+        {
+            throw new IllegalArgumentException( "Need at least one worker thread, got " + threads );
+        }
+        this.threads = threads;
+        this.deleteDamaged = deleteDamaged;
+    }
+
+    /**
+     * @see IndexRepair#setScanThreads(int)
+     */
+    public void setScanThreads( int scanThreads )
+    {
+        this.scanThreads = scanThreads;
+    }
+
+    /**
+     * @see IndexRepair#setDetectFromPostings(boolean)
+     */
+    public void setDetectFromPostings( boolean detectFromPostings )
+    {
+        this.detectFromPostings = detectFromPostings;
+    }
+
+    /**
+     * Makes every index spill its damaged documents to a file of its own
+     * in the given directory, named after the index type and name.
+     *
+     * @see IndexRepair#setSpillFile(File)
+     */
+    public void setSpillDirectory( File spillDirectory )
+    {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @see IndexRepair#setReportWriter(DamageReportWriter)
+     */
+    public void setReportWriter( DamageReportWriter report )
+    {
+        this.report = report;
+    }
+
+    /**
+     * @see IndexRepair#setLogDamagedFields(boolean)
+     */
+    public void setLogDamagedFields( boolean logDamagedFields )
+    {
+        this.logDamagedFields = logDamagedFields;
+    }
+
+    /**
+     * Makes every job also look for documents pointing to nodes or
+     * relationships that are not in use, deleting them if damaged documents
+     * are deleted.
+     *
+     * @see OrphanDetector
+     */
+    public void setInUseRecords( InUseRecords nodesInUse, InUseRecords relationshipsInUse )
+    {
+        this.nodesInUse = nodesInUse;
+        this.relationshipsInUse = relationshipsInUse;
+    }
+
+    /**
+     * Like {@link #setInUseRecords(InUseRecords, InUseRecords)}, but only
+     * for the indexes of the given store, for runs over several stores.
+     */
+    public void setInUseRecords( File storeDir, InUseRecords nodesInUse, InUseRecords relationshipsInUse )
+    {
+        inUsePerStore.put( storeDir.getAbsoluteFile(), new InUseRecords[] { nodesInUse, relationshipsInUse } );
+    }
+
+    /**
+     * Makes every job also look for ids with more than one document, keeping
+     * only the newest if damaged documents are deleted.
+     *
+     * @see DuplicateDetector
+     */
+    public void setCheckDuplicates( boolean checkDuplicates, long memoryBudget )
+    {
+        this.checkDuplicates = checkDuplicates;
+        this.duplicatesMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets the progress all jobs report to, by default one owned by this
+     * scheduler.
+     */
+    public void setProgress( RepairProgress progress )
+    {
+        this.progress = progress;
+    }
+
+    public RepairProgress getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * @see IndexRepair#setIncremental(boolean)
+     */
+    public void setIncremental( boolean incremental )
+    {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @see IndexRepair#setCheckpointInterval(int, long)
+     */
+    public void setCheckpointInterval( int docs, long millis )
+    {
+        this.checkpointDocs = docs;
+        this.checkpointMillis = millis;
+    }
+
+    /**
+     * @see IndexRepair#setResume(boolean)
+     */
+    public void setResume( boolean resume )
+    {
+        this.resume = resume;
+    }
+
+    public void setDirectoryStrategy( DirectoryStrategy directoryStrategy )
+    {
+        this.directoryStrategy = directoryStrategy;
+    }
+
+    /**
+     * Holds the reads of all the indexes being repaired, together, to this
+     * many bytes per second. Zero means no limit.
+     */
+    public void setMaxBytesPerSecond( long bytesPerSecond )
+    {
+        this.rateLimiter = bytesPerSecond > 0 ? new IoRateLimiter( bytesPerSecond ) : null;
+    }
+
+    /**
+     * @see IndexRepair#setSnapshot(boolean)
+     */
+    public void setSnapshot( boolean snapshot )
+    {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Compacts every index after it is repaired, see {@link IndexCompactor}.
+     * Only done when damaged documents are deleted.
+     */
+    public void setCompaction( boolean compact, double deletedRatioThreshold, int maxSegments, int mergeThreads )
+    {
+        this.compact = compact;
+        this.compactThreshold = deletedRatioThreshold;
+        this.compactSegments = maxSegments;
+        this.mergeThreads = mergeThreads;
+    }
+
+    /**
+     * Verifies the files of all indexes with an {@link IntegrityChecker}
+     * before any is scanned, and only scans those found safe. The others get
+     * a failed result listing the problems.
+     */
+    public void setVerifyIntegrity( boolean verify, boolean deep )
+    {
+        this.verify = verify;
+        this.verifyDeep = deep;
+    }
+
+    /**
+     * Samples every index with a {@link DamageSampler} first and only scans
+     * those where the upper bound of the estimated damage rate is above the
+     * threshold. The others are reported with their estimate instead of scan
+     * counts.
+     *
+     * @param sampleSize documents to sample per index, 0 to always scan.
+     */
+    public void setSampling( int sampleSize, double confidence, double threshold )
+    {
+        this.sampleSize = sampleSize;
+        this.sampleConfidence = confidence;
+        this.sampleThreshold = threshold;
+    }
+
+    public List<Result> run( Collection<File> indexes ) throws InterruptedException
+    {
+        List<Result> unsafe = new ArrayList<Result>();
+        if ( verify )
+        {
+            indexes = safeIndexes( indexes, unsafe );
+        }
+        List<File> ordered = largestFirst( indexes );
+        long bytes = 0;
+        for ( File index : ordered )
+        {
+            bytes += IndexPaths.sizeOf( index );
+        }
+        progress.expect( ordered.size(), bytes );
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, Math.max( 1, ordered.size() ) ) );
+        try
+        {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>( ordered.size() );
+            for ( File index : ordered )
+            {
+                futures.add( executor.submit( new RepairJob( index ) ) );
+            }
+            List<Result> results = new ArrayList<Result>( unsafe );
+            for ( Future<Result> future : futures )
+            {
+                try
+                {
+                    results.add( future.get() );
+                }
+                catch ( ExecutionException e )
+                {
+                    // RepairJob catches everything itself
+                    throw new IllegalStateException( e.getCause() );
+                }
+            }
+            return results;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<File> safeIndexes( Collection<File> indexes, List<Result> unsafe ) throws InterruptedException
+    {
+        IntegrityChecker checker = new IntegrityChecker();
+        checker.setThreads( threads );
+        checker.setDeep( verifyDeep );
+        checker.setDirectoryStrategy( directoryStrategy, rateLimiter );
+        List<IntegrityChecker.Report> reports;
+        try
+        {
+            reports = checker.verify( indexes );
+        }
+        catch ( IOException e )
+        {
+            if ( Thread.currentThread().isInterrupted() )
+            {
+                throw new InterruptedException( "Interrupted while verifying indexes" );
+            }
+            throw new IllegalStateException( "Could not verify indexes", e );
+        }
+        List<File> safe = new ArrayList<File>();
+        for ( IntegrityChecker.Report report : reports )
+        {
+            if ( report.isSafe() )
+            {
+                safe.add( report.getIndex() );
+            }
+            else
+            {
+                Result result = new Result( report.getIndex() );
+                result.failure = new IOException( "Integrity check failed: " + report.getProblems() );
+                unsafe.add( result );
+            }
+        }
+        return safe;
+    }
+
+    public static void printSummary( List<Result> results, PrintStream out )
+    {
+        long scanned = 0;
+        long damaged = 0;
+        long orphans = 0;
+        long duplicates = 0;
+        int failed = 0;
+        out.println( "Summary for " + results.size() + " indexes" );
+        for ( Result result : results )
+        {
+            if ( result.failure != null )
+            {
+                failed++;
+                out.println( String.format( "\t%s : FAILED (%s)", result.index.getAbsolutePath(), result.failure ) );
+                continue;
+            }
+            scanned += result.scanned;
+            damaged += result.damaged;
+            orphans += result.orphans;
+            duplicates += result.duplicates;
+            out.println( String.format( "\t%s : %d scanned, %d damaged, %d orphans, %d duplicates, %d ms, %.1f MB/s",
+                    result.index.getAbsolutePath(), result.scanned, result.damaged, result.orphans,
+                    result.duplicates, result.elapsedMillis, result.getThroughput() / ( 1024 * 1024 ) ) );
+            if ( result.estimate != null )
+            {
+                out.println( "\t\tsampled " + result.estimate
+                             + ( result.scanSkipped ? ", not scanned" : "" ) );
+            }
+            if ( result.compactedFrom != null )
+            {
+                out.println( "\t\tcompacted from " + result.compactedFrom + " to " + result.compactedTo );
+            }
+        }
+        out.println( String.format(
+                "Total: %d documents scanned, %d damaged, %d orphans, %d duplicates, %d indexes failed", scanned,
+                damaged, orphans, duplicates, failed ) );
+    }
+
+    /**
+     * Prints the totals of the results per store, for runs over several
+     * stores.
+     */
+    public static void printSummaryByStore( List<Result> results, PrintStream out )
+    {
+        Map<File, List<Result>> byStore = new TreeMap<File, List<Result>>();
+        for ( Result result : results )
+        {
+            File store = IndexPaths.storeOf( result.index );
+            List<Result> forStore = byStore.get( store );
+            if ( forStore == null )
+            {
+                forStore = new ArrayList<Result>();
+                byStore.put( store, forStore );
+            }
+            forStore.add( result );
+        }
+        out.println( "Summary for " + byStore.size() + " stores" );
+        for ( Map.Entry<File, List<Result>> store : byStore.entrySet() )
+        {
+            long scanned = 0;
+            long damaged = 0;
+            long orphans = 0;
+            long duplicates = 0;
+            long millis = 0;
+            int failed = 0;
+            for ( Result result : store.getValue() )
+            {
+                if ( result.failure != null )
+                {
+                    failed++;
+                    continue;
+                }
+                scanned += result.scanned;
+                damaged += result.damaged;
+                orphans += result.orphans;
+                duplicates += result.duplicates;
+                millis += result.elapsedMillis;
+            }
+            out.println( String.format(
+                    "\t%s : %d indexes, %d scanned, %d damaged, %d orphans, %d duplicates, %d failed, %d ms",
+                    store.getKey().getPath(), store.getValue().size(), scanned, damaged, orphans, duplicates, failed,
+                    millis ) );
+        }
+    }
+
+    static List<File> largestFirst( Collection<File> indexes )
+    {
+        List<SizedIndex> sized = new ArrayList<SizedIndex>( indexes.size() );
+        for ( File index : indexes )
+        {
+            sized.add( new SizedIndex( index, IndexPaths.sizeOf( index ) ) );
+        }
+        Collections.sort( sized );
+        List<File> ordered = new ArrayList<File>( sized.size() );
+        for ( SizedIndex index : sized )
+        {
+            ordered.add( index.index );
+        }
+        return ordered;
+    }
+
+    private InUseRecords inUseFor( File index )
+    {
+        boolean node = IndexPaths.typeOf( index ) == IndexTypeEnum.Node;
+        InUseRecords[] forStore = inUsePerStore.get( IndexPaths.storeOf( index ) );
+        if ( forStore != null )
+        {
+            return node ? forStore[0] : forStore[1];
+        }
+        return node ? nodesInUse : relationshipsInUse;
+    }
+
+    private void configure( IndexRepair repair )
+    {
+        repair.setDeleteDamaged( deleteDamaged );
+        repair.setScanThreads( scanThreads );
+        repair.setDetectFromPostings( detectFromPostings );
+        repair.setReportWriter( report );
+        repair.setLogDamagedFields( logDamagedFields );
+        repair.setProgress( progress );
+        repair.setIncremental( incremental );
+        repair.setCheckpointInterval( checkpointDocs, checkpointMillis );
+        repair.setResume( resume );
+        repair.setSnapshot( snapshot );
+        if ( spillDirectory != null )
+        {
+            repair.setSpillFile( new File( spillDirectory, qualifiedName( repair.getIndexDirectory() ) + ".damaged" ) );
+        }
+    }
+
+    /**
+     * @return the index name prefixed with its entity type, e.g. node-users
+     */
+    static String qualifiedName( File index )
+    {
+        return index.getParentFile().getName() + "-" + index.getName();
+    }
+
+    private static class SizedIndex implements Comparable<SizedIndex>
+    {
+        private final File index;
+        private final long size;
+
+        SizedIndex( File index, long size )
+        {
+            this.index = index;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo( SizedIndex other )
+        {
+            // descending, biggest first
+            return size > other.size ? -1 : ( size == other.size ? 0 : 1 );
+        }
+    }
+
+    private class RepairJob implements Callable<Result>
+    {
+        private final File index;
+
+        RepairJob( File index )
+        {
+            this.index = index;
+        }
+
+        @Override
+        public Result call()
+        {
+            Result result = new Result( index );
+            long start = System.currentTimeMillis();
+            progress.indexStarted( qualifiedName( index ) );
+            try
+            {
+                if ( sampleSize > 0 )
+                {
+                    DamageSampler sampler = new DamageSampler( index );
+                    sampler.setDirectoryStrategy( directoryStrategy, rateLimiter );
+                    sampler.setSampleSize( sampleSize );
+                    sampler.setConfidence( sampleConfidence );
+                    result.estimate = sampler.estimate();
+                }
+                InUseRecords inUse = inUseFor( index );
+                if ( result.estimate == null || result.estimate.getUpper() > sampleThreshold )
+                {
+                    IndexRepair repair = new IndexRepair( index, directoryStrategy, rateLimiter );
+                    configure( repair );
+                    repair.scan();
+                    result.scanned = repair.getTotalCount();
+                    result.damaged = repair.getDamagedCount();
+                    result.bytesRead = repair.getBytesRead();
+                }
+                else
+                {
+                    result.scanSkipped = true;
+                    // the scan would have taken it, the stages below can still delete
+                    if ( snapshot && deleteDamaged && ( inUse != null || checkDuplicates || compact ) )
+                    {
+                        IndexSnapshot.take( index );
+                    }
+                }
+                if ( inUse != null )
+                {
+                    OrphanDetector orphans = new OrphanDetector( index, inUse );
+                    orphans.setDirectoryStrategy( directoryStrategy, rateLimiter );
+                    orphans.setDeleteOrphans( deleteDamaged );
+                    orphans.setReportWriter( report );
+                    orphans.scan();
+                    result.orphans = orphans.getOrphanCount();
+                }
+                if ( checkDuplicates )
+                {
+                    DuplicateDetector duplicates = new DuplicateDetector( index );
+                    duplicates.setDirectoryStrategy( directoryStrategy, rateLimiter );
+                    duplicates.setMemoryBudget( duplicatesMemoryBudget );
+                    duplicates.setDeleteStale( deleteDamaged );
+                    duplicates.setReportWriter( report );
+                    duplicates.scan();
+                    result.duplicates = duplicates.getDuplicateDocCount();
+                }
+                if ( compact && deleteDamaged )
+                {
+                    long compactStart = System.nanoTime();
+                    IndexCompactor compactor = new IndexCompactor( index );
+                    compactor.setDirectoryStrategy( directoryStrategy, rateLimiter );
+                    compactor.setDeletedRatioThreshold( compactThreshold );
+                    compactor.setMaxSegments( compactSegments );
+                    compactor.setMergeThreads( mergeThreads );
+                    if ( compactor.compact() )
+                    {
+                        result.compactedFrom = compactor.getBefore();
+                        result.compactedTo = compactor.getAfter();
+                    }
+                    progress.phase( RepairProgress.Phase.COMPACT, System.nanoTime() - compactStart );
+                }
+            }
+            catch ( Throwable t )
+            {
+                result.failure = t;
+            }
+            finally
+            {
+                progress.indexDone( qualifiedName( index ) );
+            }
+            result.elapsedMillis = System.currentTimeMillis() - start;
+            return result;
+        }
+    }
+
+    public static class Result
+    {
+        private final File index;
+        private int scanned;
+        private int damaged;
+        private int orphans;
+        private int duplicates;
+        private long elapsedMillis;
+        private long bytesRead;
+        private IndexCompactor.Stats compactedFrom;
+        private IndexCompactor.Stats compactedTo;
+        private DamageSampler.Estimate estimate;
+        private boolean scanSkipped;
+        private Throwable failure;
+
+        Result( File index )
+        {
+            this.index = index;
+        }
+
+        public File getIndex()
+        {
+            return index;
+        }
+
+        public int getScanned()
+        {
+            return scanned;
+        }
+
+        public int getDamaged()
+        {
+            return damaged;
+        }
+
+        public int getOrphans()
+        {
+            return orphans;
+        }
+
+        public int getDuplicates()
+        {
+            return duplicates;
+        }
+
+        public long getElapsedMillis()
+        {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return the bytes read from the index files by the scan.
+         */
+        public long getBytesRead()
+        {
+            return bytesRead;
+        }
+
+        /**
+         * @return the index before compaction, or null if it was not
+         *         compacted.
+         */
+        public IndexCompactor.Stats getCompactedFrom()
+        {
+            return compactedFrom;
+        }
+
+        public IndexCompactor.Stats getCompactedTo()
+        {
+            return compactedTo;
+        }
+
+        /**
+         * @return the sample estimate taken before the scan, or null if the
+         *         index was not sampled.
+         */
+        public DamageSampler.Estimate getEstimate()
+        {
+            return estimate;
+        }
+
+        /**
+         * @return whether the full scan was left out because the sample
+         *         estimate was below the threshold.
+         */
+        public boolean isScanSkipped()
+        {
+            return scanSkipped;
+        }
+
+        /**
+         * @return bytes read per second over the whole job.
+         */
+        public double getThroughput()
+        {
+            return elapsedMillis == 0 ? 0 : bytesRead * 1000d / elapsedMillis;
+        }
+
+        public Throwable getFailure()
+        {
+            return failure;
+        }
+    }
+}
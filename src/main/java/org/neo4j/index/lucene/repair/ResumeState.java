@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * How far an interrupted {@link IndexRepair} scan got, kept in a properties
+ * file inside the index directory. It is written right after the deletions
+ * of a checkpoint were committed, together with the commit generation, so it
+ * is only used again if nothing else has written to the index since. If the
+ * process dies between the commit and writing this file, the next run
+ * resumes from the checkpoint before, and scanning documents twice is
+ * harmless.
+ * <p>
+ * Every scanned range is recorded as [start, position), positions being top
+ * level document ids, which the deletions of a checkpoint do not change.
+ */
+class ResumeState
+{
+    static final String FileName = "repair-resume.properties";
+
+    private final long generation;
+    private final long scanned;
+    private final long damaged;
+    private final long deleted;
+    private final int[][] ranges;
+
+    private ResumeState( long generation, long scanned, long damaged, long deleted, int[][] ranges )
+    {
+        this.generation = generation;
+        this.scanned = scanned;
+        this.damaged = damaged;
+        this.deleted = deleted;
+        this.ranges = ranges;
+    }
+
+    /**
+     * @return the state left by an interrupted scan, or null if there is
+     *         none.
+     */
+    static ResumeState load( File indexDir )
+    {
+        Properties properties = ScanCheckpoint.loadProperties( new File( indexDir, FileName ) );
+        if ( properties.isEmpty() )
+        {
+            return null;
+        }
+        try
+        {
+            int count = Integer.parseInt( properties.getProperty( "ranges" ) );
+            int[][] ranges = new int[count][];
+            for ( int i = 0; i < count; i++ )
+            {
+                String[] parts = properties.getProperty( "range." + i ).split( "," );
+                ranges[i] = new int[] { Integer.parseInt( parts[0] ), Integer.parseInt( parts[1] ) };
+            }
+            return new ResumeState( Long.parseLong( properties.getProperty( "generation" ) ),
+                    Long.parseLong( properties.getProperty( "scanned" ) ),
+                    Long.parseLong( properties.getProperty( "damaged" ) ),
+                    Long.parseLong( properties.getProperty( "deleted" ) ), ranges );
+        }
+        catch ( RuntimeException e )
+        {
+            // unreadable, start over
+            return null;
+        }
+    }
+
+    /**
+     * @param scannedRanges pairs of [start, position) of what has been
+     *            scanned so far.
+     */
+    static void store( File indexDir, long generation, long scanned, long damaged, long deleted,
+            int[][] scannedRanges ) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty( "generation", Long.toString( generation ) );
+        properties.setProperty( "scanned", Long.toString( scanned ) );
+        properties.setProperty( "damaged", Long.toString( damaged ) );
+        properties.setProperty( "deleted", Long.toString( deleted ) );
+        properties.setProperty( "ranges", Integer.toString( scannedRanges.length ) );
+        for ( int i = 0; i < scannedRanges.length; i++ )
+        {
+            properties.setProperty( "range." + i, scannedRanges[i][0] + "," + scannedRanges[i][1] );
+        }
+        ScanCheckpoint.storeProperties( new File( indexDir, FileName ), properties,
+                "Written by IndexRepair, where to resume an interrupted scan" );
+    }
+
+    static void clear( File indexDir )
+    {
+        new File( indexDir, FileName ).delete();
+    }
+
+    long getGeneration()
+    {
+        return generation;
+    }
+
+    long getScanned()
+    {
+        return scanned;
+    }
+
+    long getDamaged()
+    {
+        return damaged;
+    }
+
+    long getDeleted()
+    {
+        return deleted;
+    }
+
+    /**
+     * @return the first document of the range that is not covered by the
+     *         recorded scanned ranges, counting from the start of the range.
+     *         The ranges of the previous run may have been split differently.
+     */
+    int resumePosition( ScanRange range )
+    {
+        int position = range.getStart();
+        boolean advanced = true;
+        while ( advanced && position < range.getEnd() )
+        {
+            advanced = false;
+            for ( int[] scannedRange : ranges )
+            {
+                if ( scannedRange[0] <= position && position < scannedRange[1] )
+                {
+                    position = Math.min( scannedRange[1], range.getEnd() );
+                    advanced = true;
+                }
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * What an earlier scan found per segment of an index, kept in a properties
+ * file inside the index directory. Lucene leaves files it does not recognise
+ * alone. Segments never change once written except for their deletions, so
+ * a segment with the same name and number of deleted documents as in the
+ * checkpoint, that was clean back then, is still clean.
+ */
+class ScanCheckpoint
+{
+    static final String FileName = "repair-scan.properties";
+
+    private static final String SegmentPrefix = "segment.";
+    private static final String MaxDocSuffix = ".maxDoc";
+    private static final String DeletedSuffix = ".deleted";
+    private static final String DamagedSuffix = ".damaged";
+
+    private final File file;
+    private final Properties properties;
+
+    private ScanCheckpoint( File file, Properties properties )
+    {
+        this.file = file;
+        this.properties = properties;
+    }
+
+    /**
+     * @return the checkpoint of the given index, empty if there is none or it
+     *         cannot be read.
+     */
+    static ScanCheckpoint load( File indexDir )
+    {
+        File file = new File( indexDir, FileName );
+        return new ScanCheckpoint( file, loadProperties( file ) );
+    }
+
+    /**
+     * @return a checkpoint for the given index that is written over any
+     *         previous one on {@link #store()}.
+     */
+    static ScanCheckpoint create( File indexDir )
+    {
+        return new ScanCheckpoint( new File( indexDir, FileName ), new Properties() );
+    }
+
+    /**
+     * @return whether the segment was scanned with the same number of
+     *         documents and deletions as now and had no damaged documents.
+     */
+    boolean isCleanAndUnchanged( String segment, int maxDoc, int deletedDocs )
+    {
+        String prefix = SegmentPrefix + segment;
+        return Integer.toString( maxDoc ).equals( properties.getProperty( prefix + MaxDocSuffix ) )
+               && Integer.toString( deletedDocs ).equals( properties.getProperty( prefix + DeletedSuffix ) )
+               && "0".equals( properties.getProperty( prefix + DamagedSuffix ) );
+    }
+
+    void setSegment( String segment, int maxDoc, int deletedDocs, int damagedDocs )
+    {
+        String prefix = SegmentPrefix + segment;
+        properties.setProperty( prefix + MaxDocSuffix, Integer.toString( maxDoc ) );
+        properties.setProperty( prefix + DeletedSuffix, Integer.toString( deletedDocs ) );
+        properties.setProperty( prefix + DamagedSuffix, Integer.toString( damagedDocs ) );
+    }
+
+    void store() throws IOException
+    {
+        storeProperties( file, properties, "Written by IndexRepair, per segment results of the last scan" );
+    }
+
+    /**
+     * Writes the properties to a temporary file first and renames it over
+     * the target, so that a crash never leaves a half written file.
+     */
+    static void storeProperties( File file, Properties properties, String comment ) throws IOException
+    {
+        File temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        OutputStream out = new FileOutputStream( temp );
+        try
+        {
+            properties.store( out, comment );
+        }
+        finally
+        {
+            out.close();
+        }
+        if ( !temp.renameTo( file ) )
+        {
+            // renameTo does not replace on all platforms
+            file.delete();
+            if ( !temp.renameTo( file ) )
+            {
+                throw new IOException( "Could not write " + file );
+            }
+        }
+    }
+
+    static Properties loadProperties( File file )
+    {
+        Properties properties = new Properties();
+        if ( file.exists() )
+        {
+            try
+            {
+                InputStream in = new FileInputStream( file );
+                try
+                {
+                    properties.load( in );
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                // start over, these files only save work
+                properties.clear();
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+
+/**
+ * A range of top level document ids, [start, end), that lies completely within
+ * one segment of an index.
+ */
+class ScanRange
+{
+    private final String segment;
+    private final int segmentDeletedDocs;
+    private final int start;
+    private final int end;
+
+    ScanRange( String segment, int segmentDeletedDocs, int start, int end )
+    {
+        this.segment = segment;
+        this.segmentDeletedDocs = segmentDeletedDocs;
+        this.start = start;
+        this.end = end;
+    }
+
+    String getSegment()
+    {
+        return segment;
+    }
+
+    /**
+     * @return the number of deleted documents in the whole segment this range
+     *         is part of, when the reader was opened.
+     */
+    int getSegmentDeletedDocs()
+    {
+        return segmentDeletedDocs;
+    }
+
+    int getStart()
+    {
+        return start;
+    }
+
+    int getEnd()
+    {
+        return end;
+    }
+
+    int size()
+    {
+        return end - start;
+    }
+
+    @Override
+    public String toString()
+    {
+        return segment + "[" + start + ", " + end + ")";
+    }
+
+    /**
+     * @return one range per segment of the reader, in document id order.
+     */
+    static List<ScanRange> segmentsOf( IndexReader reader )
+    {
+        List<ScanRange> result = new ArrayList<ScanRange>();
+        IndexReader[] subReaders = reader.getSequentialSubReaders();
+        if ( subReaders == null )
+        {
+            result.add( new ScanRange( segmentName( reader, 0 ), reader.numDeletedDocs(), 0, reader.maxDoc() ) );
+            return result;
+        }
+        int docBase = 0;
+        for ( int i = 0; i < subReaders.length; i++ )
+        {
+            int maxDoc = subReaders[i].maxDoc();
+            result.add( new ScanRange( segmentName( subReaders[i], i ), subReaders[i].numDeletedDocs(), docBase,
+                    docBase + maxDoc ) );
+            docBase += maxDoc;
+        }
+        return result;
+    }
+
+    /**
+     * Splits the reader into ranges that can be scanned independently. Every
+     * segment gets at least one range, and segments bigger than
+     * maxDoc/parts are cut further so that a single huge segment can still
+     * be spread over parts threads.
+     */
+    static List<ScanRange> split( IndexReader reader, int parts )
+    {
+        return split( segmentsOf( reader ), reader.maxDoc(), parts );
+    }
+
+    /**
+     * Like {@link #split(IndexReader, int)} but for a subset of the segments
+     * of a reader with maxDoc documents.
+     */
+    static List<ScanRange> split( List<ScanRange> segments, int maxDoc, int parts )
+    {
+        if ( parts <= 1 )
+        {
+            return segments;
+        }
+        int chunk = Math.max( 1, ( maxDoc + parts - 1 ) / parts );
+        List<ScanRange> result = new ArrayList<ScanRange>();
+        for ( ScanRange segment : segments )
+        {
+            for ( int start = segment.start; start < segment.end; start += chunk )
+            {
+                result.add( new ScanRange( segment.segment, segment.segmentDeletedDocs, start, Math.min( segment.end,
+                        start + chunk ) ) );
+            }
+        }
+        return result;
+    }
+
+    private static String segmentName( IndexReader reader, int ordinal )
+    {
+        if ( reader instanceof SegmentReader )
+        {
+            return ( (SegmentReader) reader ).getSegmentName();
+        }
+        return "_sub" + ordinal;
+    }
+}
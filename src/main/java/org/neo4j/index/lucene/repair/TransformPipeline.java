@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene.repair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Streams every live document of an index through a chain of
+ * {@link DocumentTransform}s and writes the changed ones back with
+ * {@link IndexWriter#updateDocument(Term, Document)}, keyed on their original
+ * _id_. Reading and transforming happens on a background thread, writing on
+ * the calling thread, with a bounded queue in between. Documents without an
+ * _id_ cannot be updated and are left alone, use {@link IndexRepair} for
+ * those. Everything is committed once at the end, or rolled back on failure.
+ * <p>
+ * Documents are rebuilt from their stored fields, so an index with a field
+ * that is indexed but not stored is refused, every rewritten document would
+ * lose it. That is checked on the first live document with a term in each
+ * field.
+ */
+public class TransformPipeline
+{
+    private static final Logger log = Logger.getLogger( TransformPipeline.class.getName() );
+    private static final String IdField = "_id_";
+    private static final Change EndOfChanges = new Change( null, null );
+
+    private final Directory dir;
+    private final List<DocumentTransform> transforms;
+    private double ramBufferSizeMB = 256;
+    private int queueSize = 10000;
+
+    private int readDocs;
+    private int changedDocs;
+    private int skippedDocs;
+
+    public TransformPipeline( Directory dir, List<DocumentTransform> transforms )
+    {
+        this.dir = dir;
+        this.transforms = new ArrayList<DocumentTransform>( transforms );
+    }
+
+    public void setRamBufferSizeMB( double ramBufferSizeMB )
+    {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+    }
+
+    public void setQueueSize( int queueSize )
+    {
+        this.queueSize = queueSize;
+    }
+
+    public void run() throws IOException
+    {
+        final IndexReader reader = IndexReader.open( dir, true );
+        boolean refused = true;
+        try
+        {
+            refuseUnstoredFields( reader );
+            refused = false;
+        }
+        finally
+        {
+            if ( refused )
+            {
+                reader.close();
+            }
+        }
+        final BlockingQueue<Change> changes = new ArrayBlockingQueue<Change>( queueSize );
+        final Throwable[] readFailure = new Throwable[1];
+        Thread readerThread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    read( reader, changes );
+                }
+                catch ( Throwable t )
+                {
+                    readFailure[0] = t;
+                }
+                finally
+                {
+                    try
+                    {
+                        changes.put( EndOfChanges );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "transform-pipeline-reader" );
+
+        IndexWriter writer = new IndexWriter( dir, new IndexWriterConfig( Version.LUCENE_35, new WhitespaceAnalyzer(
+                Version.LUCENE_35 ) ).setRAMBufferSizeMB( ramBufferSizeMB ) );
+        boolean success = false;
+        readerThread.start();
+        try
+        {
+            for ( Change change = take( changes ); change != EndOfChanges; change = take( changes ) )
+            {
+                writer.updateDocument( change.id, change.document );
+            }
+            join( readerThread );
+            if ( readFailure[0] != null )
+            {
+                throw new IOException( "Failed to read documents", readFailure[0] );
+            }
+            writer.commit();
+            success = true;
+        }
+        finally
+        {
+            if ( success )
+            {
+                writer.close();
+            }
+            else
+            {
+                readerThread.interrupt();
+                // make room for the end marker so that the reader can finish
+                changes.clear();
+                writer.rollback();
+            }
+            join( readerThread );
+            reader.close();
+        }
+        log.info( "Transformed " + dir + ": read " + readDocs + " documents, rewrote " + changedDocs
+                  + ", skipped " + skippedDocs + " without an id" );
+    }
+
+    public int getReadCount()
+    {
+        return readDocs;
+    }
+
+    public int getChangedCount()
+    {
+        return changedDocs;
+    }
+
+    public int getSkippedCount()
+    {
+        return skippedDocs;
+    }
+
+    private void refuseUnstoredFields( IndexReader reader ) throws IOException
+    {
+        TermDocs termDocs = reader.termDocs();
+        try
+        {
+            for ( String field : reader.getFieldNames( IndexReader.FieldOption.INDEXED ) )
+            {
+                TermEnum terms = reader.terms( new Term( field, "" ) );
+                try
+                {
+                    Term term = terms.term();
+                    if ( term == null || !field.equals( term.field() ) )
+                    {
+                        continue;
+                    }
+                    termDocs.seek( terms );
+                    if ( termDocs.next() && reader.document( termDocs.doc() ).getFieldable( field ) == null )
+                    {
+                        throw new IllegalStateException( "Field " + field + " of " + dir
+                                                         + " is indexed but not stored, transforming would lose it" );
+                    }
+                }
+                finally
+                {
+                    terms.close();
+                }
+            }
+        }
+        finally
+        {
+            termDocs.close();
+        }
+    }
+
+    private void read( IndexReader reader, BlockingQueue<Change> changes ) throws IOException, InterruptedException
+    {
+        Term idTerm = new Term( IdField, "" );
+        for ( int i = 0; i < reader.maxDoc(); i++ )
+        {
+            if ( reader.isDeleted( i ) )
+            {
+                continue;
+            }
+            readDocs++;
+            Document document = reader.document( i );
+            String id = document.get( IdField );
+            boolean changed = false;
+            for ( DocumentTransform transform : transforms )
+            {
+                changed |= transform.transform( document );
+            }
+            if ( !changed )
+            {
+                continue;
+            }
+            if ( id == null )
+            {
+                skippedDocs++;
+                continue;
+            }
+            changedDocs++;
+            changes.put( new Change( idTerm.createTerm( id ), document ) );
+        }
+    }
+
+    private static Change take( BlockingQueue<Change> changes ) throws IOException
+    {
+        try
+        {
+            return changes.take();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while writing transformed documents", e );
+        }
+    }
+
+    private static void join( Thread thread ) throws IOException
+    {
+        try
+        {
+            thread.join();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for " + thread.getName(), e );
+        }
+    }
+
+    private static class Change
+    {
+        private final Term id;
+        private final Document document;
+
+        Change( Term id, Document document )
+        {
+            this.id = id;
+            this.document = document;
+        }
+    }
+}
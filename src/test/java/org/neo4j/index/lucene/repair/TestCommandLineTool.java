@@ -20,6 +20,7 @@
 package org.neo4j.index.lucene.repair;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
@@ -122,4 +123,79 @@ public class TestCommandLineTool
             }
         }
     }
+
+    @Test
+    public void repairsSeveralIndexesConcurrently() throws Exception
+    {
+        // build phase
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "repairsSeveralIndexesConcurrently", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        int indexCount = 4;
+        for ( int index = 0; index < indexCount; index++ )
+        {
+            db.createNodeIndex( "node" + index );
+            for ( int i = 0; i < 10 * ( index + 1 ); i++ )
+            {
+                db.createAndIndexNode( "node" + index, "key" + i, "value" + i, false );
+            }
+        }
+        db.shutdown();
+
+        // damage phase, the first node in every index
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        long firstInIndex = 1;
+        for ( int index = 0; index < indexCount; index++ )
+        {
+            new IndexHandler( paths.forNode( "node" + index ) ).deleteFieldFromNodeDocument( firstInIndex, "_id_" );
+            firstInIndex += 10 * ( index + 1 );
+        }
+
+        // repair phase
+        RepairMissingId.main( new String[] { storeDir.getAbsolutePath(), "repair", "--threads=3" } );
+
+        // verify phase
+        db.start();
+        for ( int index = 0; index < indexCount; index++ )
+        {
+            assertNull( "index value should not be here", db.getUniqueFromNodeIndex( "node" + index, "key0", "value0" ) );
+            assertNotNull( "missing index value", db.getUniqueFromNodeIndex( "node" + index, "key1", "value1" ) );
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void repairsAllStoresOfABatch() throws Exception
+    {
+        // build phase, two stores under one parent directory
+        File parent = TargetDirectory.forTest( getClass() ).directory( "repairsAllStoresOfABatch", true );
+        String nodeIndex1 = "node1";
+        File[] storeDirs = { new File( parent, "tenant1" ), new File( parent, "tenant2" ) };
+        for ( File storeDir : storeDirs )
+        {
+            GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+            db.createNodeIndex( nodeIndex1 );
+            for ( int i = 0; i < 10; i++ )
+            {
+                db.createAndIndexNode( nodeIndex1, "key" + i, "value" + i, false );
+            }
+            db.shutdown();
+
+            // damage phase
+            new IndexHandler( IndexPaths.fromRoot( storeDir ).forNode( nodeIndex1 ) ).deleteFieldFromNodeDocument( 1,
+                    "_id_" );
+        }
+
+        // repair phase
+        RepairMissingId.main( new String[] { parent.getAbsolutePath(), "repair", "--batch", "--threads=2" } );
+
+        // verify phase
+        for ( File storeDir : storeDirs )
+        {
+            GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+            assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key0", "value0" ) );
+            assertNotNull( "missing index value", db.getUniqueFromNodeIndex( nodeIndex1, "key1", "value1" ) );
+            db.shutdown();
+        }
+    }
 }
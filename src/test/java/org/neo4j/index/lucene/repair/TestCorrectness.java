@@ -20,11 +20,30 @@
 package org.neo4j.index.lucene.repair;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
 import org.junit.Test;
+import org.neo4j.index.impl.lucene.IndexTypeEnum;
+import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.index.lucene.ValueContext;
 import org.neo4j.index.lucene.repair.util.GraphDatabaseHandler;
 import org.neo4j.test.TargetDirectory;
 
@@ -152,4 +171,862 @@ public class TestCorrectness
         assertEquals( "missing index value", node2, db.getUniqueFromNodeIndex( nodeIndex1, "key2", "value2" ).getId() );
         db.shutdown();
     }
+
+    @Test
+    public void testConcurrentScanFindsAndRemovesDamagedFields() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testConcurrentScanFindsAndRemovesDamagedFields",
+                true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long[] nodes = new long[50];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createAndIndexNode( nodeIndex1, "key" + i, "value" + i, false );
+        }
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocument( nodes[3], "_id_" );
+        indexHandler.deleteFieldFromNodeDocument( nodes[40], "_id_" );
+
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.setScanThreads( 4 );
+        repair.setDeleteDamaged( true );
+        repair.scan();
+        assertEquals( "did not detect damaged docs", 2, repair.getDamagedCount() );
+
+        db.start();
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key3", "value3" ) );
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key40", "value40" ) );
+        assertEquals( "missing index value", nodes[4], db.getUniqueFromNodeIndex( nodeIndex1, "key4", "value4" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testPostingsDetectionFindsSameDamagedDocs() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testPostingsDetectionFindsSameDamagedDocs", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        long node2 = db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.createAndIndexNode( nodeIndex1, "key3", "value3", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocument( node1, "_id_" );
+
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.setDetectFromPostings( true );
+        repair.setDeleteDamaged( true );
+        repair.scan();
+        assertEquals( "did not detect damaged docs", 1, repair.getDamagedCount() );
+
+        db.start();
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key1", "value1" ) );
+        assertEquals( "missing index value", node2, db.getUniqueFromNodeIndex( nodeIndex1, "key2", "value2" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testSpillsDamagedDocuments() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testSpillsDamagedDocuments", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocument( node1, "_id_" );
+
+        File spillFile = new File( storeDir, "node1.damaged" );
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.setSpillFile( spillFile );
+        repair.scan();
+        assertEquals( "did not detect damaged docs", 1, repair.getDamagedCount() );
+
+        final List<Document> spilled = new ArrayList<Document>();
+        DamagedDocumentSpill.replay( spillFile, new DamagedDocumentSpill.Visitor()
+        {
+            @Override
+            public void visit( int docId, Document doc )
+            {
+                spilled.add( doc );
+            }
+        } );
+        assertEquals( 1, spilled.size() );
+        assertNull( spilled.get( 0 ).get( "_id_" ) );
+        assertEquals( "value1", spilled.get( 0 ).get( "key1" ) );
+    }
+
+    @Test
+    public void testReportsDamagedDocuments() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testReportsDamagedDocuments", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocument( node1, "_id_" );
+
+        StringWriter out = new StringWriter();
+        DamageReportWriter report = new DamageReportWriter( out, DamageReportWriter.Format.JSONL );
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.setReportWriter( report );
+        repair.setLogDamagedFields( false );
+        repair.scan();
+        report.close();
+
+        String[] lines = out.toString().split( "\n" );
+        assertEquals( 1, lines.length );
+        assertTrue( lines[0], lines[0].contains( "\"key1\":\"value1\"" ) );
+        assertTrue( lines[0], lines[0].startsWith( "{\"index\":" ) );
+    }
+
+    @Test
+    public void testBatchFieldDeletion() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testBatchFieldDeletion", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        List<Long> toDamage = new ArrayList<Long>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            long node = db.createAndIndexNode( nodeIndex1, "key" + i, "value" + i, false );
+            if ( i % 2 == 0 )
+            {
+                toDamage.add( node );
+            }
+        }
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        assertEquals( toDamage.size(), indexHandler.deleteFieldFromNodeDocuments( toDamage, "_id_" ) );
+
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.scan();
+        assertEquals( "did not detect damaged docs", toDamage.size(), repair.getDamagedCount() );
+    }
+
+    @Test
+    public void testTransformRenamesKeys() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testTransformRenamesKeys", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "oldKey", "value1", false );
+        long node2 = db.createAndIndexNode( nodeIndex1, "otherKey", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        TransformPipeline pipeline = new IndexHandler( paths.forNode( nodeIndex1 ) ).transform(
+                Arrays.asList( DocumentTransform.Transforms.renameField( "oldKey", "newKey" ) ) );
+        assertEquals( 2, pipeline.getReadCount() );
+        assertEquals( 1, pipeline.getChangedCount() );
+
+        db.start();
+        assertNull( db.getUniqueFromNodeIndex( nodeIndex1, "oldKey", "value1" ) );
+        assertEquals( node1, db.getUniqueFromNodeIndex( nodeIndex1, "newKey", "value1" ).getId() );
+        assertEquals( node2, db.getUniqueFromNodeIndex( nodeIndex1, "otherKey", "value2" ).getId() );
+        db.shutdown();
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void testTransformRefusesUnstoredFields() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testTransformRefusesUnstoredFields", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        db.createAndIndexNode( nodeIndex1, "oldKey", "value1", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexWriter writer = new IndexWriter( FSDirectory.open( paths.forNode( nodeIndex1 ) ), new IndexWriterConfig(
+                Version.LUCENE_35, new WhitespaceAnalyzer( Version.LUCENE_35 ) ) );
+        Document unstored = new Document();
+        unstored.add( new Field( "_id_", "100", Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+        unstored.add( new Field( "text", "indexed only", Field.Store.NO, Field.Index.ANALYZED ) );
+        writer.addDocument( unstored );
+        writer.close();
+
+        new IndexHandler( paths.forNode( nodeIndex1 ) ).transform( Arrays.asList(
+                DocumentTransform.Transforms.renameField( "oldKey", "newKey" ) ) );
+    }
+
+    @Test
+    public void testDetectsAndRemovesOrphans() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testDetectsAndRemovesOrphans", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        long node2 = db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.deleteNodeOnly( node1 );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        InUseRecords nodes = InUseRecords.forNodes( storeDir );
+        assertFalse( nodes.isInUse( node1 ) );
+        assertTrue( nodes.isInUse( node2 ) );
+
+        OrphanDetector detector = new OrphanDetector( paths.forNode( nodeIndex1 ), nodes );
+        detector.setDeleteOrphans( true );
+        detector.scan();
+        assertEquals( "did not detect orphan", 1, detector.getOrphanCount() );
+
+        db.start();
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key1", "value1" ) );
+        assertEquals( "missing index value", node2, db.getUniqueFromNodeIndex( nodeIndex1, "key2", "value2" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testRebuildsIndexFromProperties() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testRebuildsIndexFromProperties", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long[] nodes = new long[20];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createAndIndexNode( nodeIndex1, "key", "value" + i, true );
+        }
+        for ( int i = 0; i < 10; i++ )
+        {
+            db.indexNode( nodeIndex1, nodes[i], "number", ValueContext.numeric( i ), true );
+        }
+        // a property the node was never indexed under
+        db.setNodePropertyOnly( nodes[0], "unindexed", "value" );
+        // has the key, but was never in node1
+        String nodeIndex2 = "node2";
+        db.createNodeIndex( nodeIndex2 );
+        db.createAndIndexNode( nodeIndex2, "key", "neverInNode1", true );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocument( nodes[5], "_id_" );
+
+        IndexRebuilder rebuilder = new IndexRebuilder( storeDir, IndexTypeEnum.Node, nodeIndex1,
+                new ArrayList<String>() );
+        rebuilder.setThreads( 3 );
+        rebuilder.rebuild();
+        assertEquals( nodes.length, rebuilder.getDocumentCount() );
+        assertTrue( "old index not kept", IndexRebuilder.oldIndexOf( paths.forNode( nodeIndex1 ) ).isDirectory() );
+        assertEquals( 2, paths.nodeIndexes().length );
+
+        // stopped between moving the old index away and the rebuilt one in
+        IndexRebuilder.deleteRecursively( paths.forNode( nodeIndex1 ) );
+        rebuilder = new IndexRebuilder( storeDir, IndexTypeEnum.Node, nodeIndex1, new ArrayList<String>() );
+        rebuilder.rebuild();
+        assertEquals( nodes.length, rebuilder.getDocumentCount() );
+
+        db.start();
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            assertEquals( "missing index value", nodes[i], db.getUniqueFromNodeIndex( nodeIndex1, "key", "value" + i )
+                    .getId() );
+        }
+        assertEquals( "numeric range lost", 5,
+                db.getAsAGD().index().forNodes( nodeIndex1 ).query( QueryContext.numericRange( "number", 3, 7 ) )
+                        .size() );
+        assertNull( "entity never in the index was added", db.getUniqueFromNodeIndex( nodeIndex1, "key",
+                "neverInNode1" ) );
+        assertNull( "key never indexed was added", db.getUniqueFromNodeIndex( nodeIndex1, "unindexed", "value" ) );
+        db.shutdown();
+    }
+
+    @Test
+    public void testDetectsDuplicateIds() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testDetectsDuplicateIds", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", true );
+        db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.shutdown();
+
+        // a second, stale, document for node1 with a higher document id than the current one
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexWriter writer = new IndexWriter( FSDirectory.open( paths.forNode( nodeIndex1 ) ), new IndexWriterConfig(
+                Version.LUCENE_35, new WhitespaceAnalyzer( Version.LUCENE_35 ) ) );
+        Document duplicate = new Document();
+        duplicate.add( new Field( "_id_", Long.toString( node1 ), Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+        duplicate.add( new Field( "key1", "stale", Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+        writer.addDocument( duplicate );
+        writer.close();
+
+        DuplicateDetector detector = new DuplicateDetector( paths.forNode( nodeIndex1 ) );
+        detector.setDeleteStale( true );
+        detector.scan();
+        assertEquals( 1, detector.getDuplicatedIdCount() );
+        assertEquals( 1, detector.getDuplicateDocCount() );
+
+        db.start();
+        assertEquals( "missing index value", node1, db.getUniqueFromNodeIndex( nodeIndex1, "key1", "value1" ).getId() );
+        assertNull( "stale document kept", db.getUniqueFromNodeIndex( nodeIndex1, "key1", "stale" ) );
+        db.shutdown();
+    }
+
+    @Test
+    public void testIncrementalScanSkipsUnchangedSegments() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testIncrementalScanSkipsUnchangedSegments",
+                true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexRepair first = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        first.setIncremental( true );
+        first.scan();
+        assertEquals( 0, first.getSkippedCount() );
+
+        IndexRepair second = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        second.setIncremental( true );
+        second.scan();
+        assertEquals( 0, second.getTotalCount() );
+        assertEquals( first.getTotalCount(), second.getSkippedCount() );
+
+        // damaging a document adds a segment and a deletion, which must be scanned
+        new IndexHandler( paths.forNode( nodeIndex1 ) ).deleteFieldFromNodeDocument( node1, "_id_" );
+        IndexRepair third = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        third.setIncremental( true );
+        third.scan();
+        assertEquals( "did not detect damaged docs", 1, third.getDamagedCount() );
+    }
+
+    @Test
+    public void testCheckpointedScanResumes() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testCheckpointedScanResumes", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long[] nodes = new long[20];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createAndIndexNode( nodeIndex1, "key" + i, "value" + i, false );
+        }
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocument( nodes[2], "_id_" );
+        indexHandler.deleteFieldFromNodeDocument( nodes[15], "_id_" );
+
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.setDeleteDamaged( true );
+        repair.setCheckpointInterval( 3, 0 );
+        repair.setResume( true );
+        repair.scan();
+        assertEquals( "did not detect damaged docs", 2, repair.getDamagedCount() );
+        assertFalse( "resume state left behind",
+                new File( paths.forNode( nodeIndex1 ), ResumeState.FileName ).exists() );
+
+        db.start();
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key2", "value2" ) );
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key15", "value15" ) );
+        assertEquals( "missing index value", nodes[3], db.getUniqueFromNodeIndex( nodeIndex1, "key3", "value3" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testEveryDirectoryStrategyFindsDamagedDocs() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testEveryDirectoryStrategyFindsDamagedDocs",
+                true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ), DirectoryStrategy.NIO, null );
+        indexHandler.deleteFieldFromNodeDocument( node1, "_id_" );
+        assertTrue( "no reads counted", indexHandler.getBytesRead() > 0 );
+
+        IoRateLimiter limiter = new IoRateLimiter( 100 * 1024 * 1024 );
+        for ( DirectoryStrategy strategy : DirectoryStrategy.values() )
+        {
+            IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ), strategy, limiter );
+            repair.scan();
+            assertEquals( "did not detect damaged docs with " + strategy, 1, repair.getDamagedCount() );
+            assertTrue( "no reads counted with " + strategy, repair.getBytesRead() > 0 );
+        }
+    }
+
+    @Test
+    public void testCompactsAfterRepair() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testCompactsAfterRepair", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long[] nodes = new long[10];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createAndIndexNode( nodeIndex1, "key" + i, "value" + i, false );
+        }
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        new IndexHandler( paths.forNode( nodeIndex1 ) ).deleteFieldFromNodeDocuments(
+                Arrays.asList( nodes[1], nodes[2], nodes[3] ), "_id_" );
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.setDeleteDamaged( true );
+        repair.scan();
+
+        IndexCompactor high = new IndexCompactor( paths.forNode( nodeIndex1 ) );
+        high.setDeletedRatioThreshold( 0.9 );
+        assertFalse( "compacted below the threshold", high.compact() );
+
+        IndexCompactor compactor = new IndexCompactor( paths.forNode( nodeIndex1 ) );
+        compactor.setMaxSegments( 1 );
+        compactor.setMergeThreads( 2 );
+        assertTrue( "did not compact", compactor.compact() );
+        assertTrue( "no deletions before", compactor.getBefore().getDeletedDocs() > 0 );
+        assertEquals( 0, compactor.getAfter().getDeletedDocs() );
+        assertEquals( 1, compactor.getAfter().getSegments() );
+
+        db.start();
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key1", "value1" ) );
+        assertEquals( "missing index value", nodes[4], db.getUniqueFromNodeIndex( nodeIndex1, "key4", "value4" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testOnlineRepairDeletesThroughLiveWriter() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testOnlineRepairDeletesThroughLiveWriter",
+                true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        long node2 = db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        long node3 = db.createAndIndexNode( nodeIndex1, "key3", "value3", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        new IndexHandler( paths.forNode( nodeIndex1 ) ).deleteFieldFromNodeDocuments( Arrays.asList( node1, node3 ),
+                "_id_" );
+
+        db.start();
+        OnlineRepair repair = new OnlineRepair( db.getAsAGD(), IndexTypeEnum.Node, nodeIndex1 );
+        repair.setDeleteDamaged( true );
+        repair.setBatchSize( 1 );
+        repair.setPauseMillis( 0 );
+        repair.repair();
+        assertEquals( "did not detect damaged docs", 2, repair.getDamagedCount() );
+        assertEquals( 0, repair.countRemainingDamaged() );
+
+        assertNull( "index value should not be here", db.getUniqueFromNodeIndex( nodeIndex1, "key1", "value1" ) );
+        assertEquals( "missing index value", node2, db.getUniqueFromNodeIndex( nodeIndex1, "key2", "value2" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testRollsBackToSnapshot() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testRollsBackToSnapshot", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long node1 = db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        long node2 = db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        File index = paths.forNode( nodeIndex1 );
+        new IndexHandler( index ).deleteFieldFromNodeDocument( node1, "_id_" );
+
+        IndexRepair repair = new IndexRepair( index );
+        repair.setDeleteDamaged( true );
+        repair.setSnapshot( true );
+        repair.scan();
+        assertTrue( "no snapshot taken", IndexSnapshot.exists( index ) );
+        IndexRepair afterRepair = new IndexRepair( index );
+        afterRepair.scan();
+        assertEquals( "damaged doc not deleted", 0, afterRepair.getDamagedCount() );
+
+        IndexSnapshot.rollback( index );
+        IndexRepair afterRollback = new IndexRepair( index );
+        afterRollback.scan();
+        assertEquals( "damaged doc not restored", 1, afterRollback.getDamagedCount() );
+
+        db.start();
+        assertEquals( "missing index value", node2, db.getUniqueFromNodeIndex( nodeIndex1, "key2", "value2" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testFindsIndexValuesNotMatchingStore() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testFindsIndexValuesNotMatchingStore", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        db.createAndIndexNode( nodeIndex1, "key1", "value1", true );
+        long stale = db.createAndIndexNode( nodeIndex1, "key1", "value2", true );
+        long deleted = db.createAndIndexNode( nodeIndex1, "key1", "value3", true );
+        db.setNodePropertyOnly( stale, "key1", "changed" );
+        db.deleteNodeOnly( deleted );
+        db.shutdown();
+
+        StringWriter out = new StringWriter();
+        DamageReportWriter report = new DamageReportWriter( out, DamageReportWriter.Format.JSONL );
+        ConsistencyChecker checker = new ConsistencyChecker( storeDir, Arrays.asList( "key1" ) );
+        checker.setThreads( 2 );
+        checker.setReportWriter( report );
+        checker.check();
+        report.close();
+
+        assertEquals( 3, checker.getCheckedCount() );
+        assertEquals( 1, checker.getMismatchCount( ConsistencyChecker.Mismatch.STALE_VALUE ) );
+        assertEquals( 1, checker.getMismatchCount( ConsistencyChecker.Mismatch.MISSING_ENTITY ) );
+        assertEquals( 0, checker.getMismatchCount( ConsistencyChecker.Mismatch.MISSING_PROPERTY ) );
+        assertTrue( "stale value not reported", out.toString().contains( "changed" ) );
+    }
+
+    @Test
+    public void testProfilesIndexes() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testProfilesIndexes", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        db.createAndIndexNode( nodeIndex1, "key1", "value1", false );
+        db.createAndIndexNode( nodeIndex1, "key2", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexProfiler profiler = new IndexProfiler();
+        List<IndexProfiler.IndexProfile> profiles = profiler.profile( Arrays.asList( paths.nodeIndexes() ) );
+        assertEquals( 1, profiles.size() );
+        IndexProfiler.IndexProfile profile = profiles.get( 0 );
+        assertEquals( 3, profile.getMaxDoc() - profile.getDeletedDocs() );
+        assertTrue( "no segments", profile.getSegments() > 0 );
+        assertTrue( "no stored fields", profile.getDocStoreBytes() > 0 );
+        assertEquals( 3, profile.getFields().get( "_id_" ).getTerms() );
+        assertEquals( 1, profile.getFields().get( "key1" ).getTerms() );
+        assertEquals( 2, profile.getFields().get( "key1" ).getMaxDocFreq() );
+
+        StringWriter out = new StringWriter();
+        IndexProfiler.writeReport( profiles, out );
+        assertTrue( "field missing from report", out.toString().contains( "\"field\":\"key2\"" ) );
+    }
+
+    @Test
+    public void testIntegrityCheckFindsChangedFiles() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testIntegrityCheckFindsChangedFiles", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            db.createAndIndexNode( nodeIndex1, "key" + i, "value" + i, false );
+        }
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        File index = paths.forNode( nodeIndex1 );
+        IntegrityChecker checker = new IntegrityChecker();
+        checker.setDeep( true );
+        List<IntegrityChecker.Report> reports = checker.verify( Arrays.asList( index ) );
+        assertTrue( "clean index not safe: " + reports.get( 0 ).getProblems(), reports.get( 0 ).isSafe() );
+        assertTrue( "checksums not recorded", new File( index, IntegrityChecker.ChecksumsName ).exists() );
+
+        // flip a byte in the biggest segment file, keeping its length
+        File biggest = null;
+        for ( File file : index.listFiles() )
+        {
+            if ( file.isFile() && !file.getName().startsWith( "segments" ) && !file.getName().endsWith( ".properties" )
+                 && ( biggest == null || file.length() > biggest.length() ) )
+            {
+                biggest = file;
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile( biggest, "rw" );
+        try
+        {
+            raf.seek( biggest.length() / 2 );
+            int b = raf.read();
+            raf.seek( biggest.length() / 2 );
+            raf.write( b ^ 0xFF );
+        }
+        finally
+        {
+            raf.close();
+        }
+        reports = new IntegrityChecker().verify( Arrays.asList( index ) );
+        assertFalse( "corruption not found", reports.get( 0 ).isSafe() );
+    }
+
+    @Test
+    public void testExportsAndImportsIndex() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testExportsAndImportsIndex", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        String nodeIndex2 = "node2";
+        db.createNodeIndex( nodeIndex1 );
+        db.createNodeIndex( nodeIndex2 );
+        long[] nodes = new long[20];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createAndIndexNode( nodeIndex1, "key", "value" + i, false );
+        }
+        for ( int i = 0; i < 10; i++ )
+        {
+            db.createAndIndexNode( nodeIndex1, "number", ValueContext.numeric( i ), false );
+        }
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocument( nodes[5], "_id_" );
+
+        File exported = new File( storeDir, "node1.export" );
+        IndexExport export = new IndexExport( paths.forNode( nodeIndex1 ) );
+        export.setCompress( true );
+        export.exportTo( exported );
+        assertEquals( nodes.length - 1 + 10, export.getDocumentCount() );
+        assertEquals( 1, export.getSkippedCount() );
+
+        IndexExport importer = new IndexExport( paths.forNode( nodeIndex2 ) );
+        importer.setReplace( true );
+        importer.setRamBufferSizeMB( 16 );
+        importer.importFrom( exported );
+        assertEquals( nodes.length - 1 + 10, importer.getDocumentCount() );
+
+        db.start();
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            if ( i == 5 )
+            {
+                assertNull( db.getUniqueFromNodeIndex( nodeIndex2, "key", "value" + i ) );
+            }
+            else
+            {
+                assertEquals( "missing imported value", nodes[i],
+                        db.getUniqueFromNodeIndex( nodeIndex2, "key", "value" + i ).getId() );
+            }
+        }
+        assertEquals( "numeric range lost", 5,
+                db.getAsAGD().index().forNodes( nodeIndex2 ).query( QueryContext.numericRange( "number", 3, 7 ) )
+                        .size() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testImportRejectsCorruptExport() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testImportRejectsCorruptExport", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        String nodeIndex2 = "node2";
+        db.createNodeIndex( nodeIndex1 );
+        db.createNodeIndex( nodeIndex2 );
+        db.createAndIndexNode( nodeIndex1, "key", "value1", false );
+        long kept = db.createAndIndexNode( nodeIndex2, "key", "value2", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        File exported = new File( storeDir, "node1.export" );
+        new IndexExport( paths.forNode( nodeIndex1 ) ).exportTo( exported );
+        RandomAccessFile raf = new RandomAccessFile( exported, "rw" );
+        try
+        {
+            // the end marker
+            raf.seek( raf.length() - 1 );
+            raf.write( 2 );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        IndexExport importer = new IndexExport( paths.forNode( nodeIndex2 ) );
+        importer.setReplace( true );
+        try
+        {
+            importer.importFrom( exported );
+            fail( "corrupt export imported" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+
+        db.start();
+        assertEquals( "replaced by a failed import", kept,
+                db.getUniqueFromNodeIndex( nodeIndex2, "key", "value2" ).getId() );
+        db.shutdown();
+    }
+
+    @Test
+    public void testSamplingEstimatesDamage() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testSamplingEstimatesDamage", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long[] nodes = new long[100];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createAndIndexNode( nodeIndex1, "key", "value" + i, false );
+        }
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        DamageSampler sampler = new DamageSampler( paths.forNode( nodeIndex1 ) );
+        sampler.setSampleSize( 20 );
+        sampler.setSeed( 42 );
+        DamageSampler.Estimate estimate = sampler.estimate();
+        assertEquals( 20, estimate.getSampled() );
+        assertEquals( 0, estimate.getDamaged() );
+        assertTrue( "interval should allow some damage", estimate.getUpper() > 0 );
+
+        RepairScheduler scheduler = new RepairScheduler( 1, false );
+        // 20 clean documents of 100 bound the damage rate below about 0.15
+        scheduler.setSampling( 20, 0.95, 0.2 );
+        RepairScheduler.Result result = scheduler.run( Arrays.asList( paths.forNode( nodeIndex1 ) ) ).get( 0 );
+        assertTrue( "clean index scanned", result.isScanSkipped() );
+
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        for ( int i = 0; i < 10; i++ )
+        {
+            indexHandler.deleteFieldFromNodeDocument( nodes[i * 10], "_id_" );
+        }
+        // a sample as big as the index is exact
+        sampler.setSampleSize( 1000 );
+        estimate = sampler.estimate();
+        assertEquals( nodes.length, estimate.getSampled() );
+        assertEquals( 10, estimate.getDamaged() );
+        assertEquals( 0.1, estimate.getLower(), 0.0001 );
+        assertEquals( 0.1, estimate.getUpper(), 0.0001 );
+    }
+
+    @Test
+    public void testRecoversMissingIdsFromProperties() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testRecoversMissingIdsFromProperties", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        long[] nodes = new long[10];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createAndIndexNode( nodeIndex1, "key", "value" + i, true );
+        }
+        long shared1 = db.createAndIndexNode( nodeIndex1, "key", "shared", true );
+        db.createAndIndexNode( nodeIndex1, "key", "shared", true );
+        long notAProperty = db.createAndIndexNode( nodeIndex1, "key", "indexOnly", false );
+        db.shutdown();
+
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexHandler indexHandler = new IndexHandler( paths.forNode( nodeIndex1 ) );
+        indexHandler.deleteFieldFromNodeDocuments( Arrays.asList( nodes[3], nodes[7], shared1, notAProperty ),
+                "_id_" );
+
+        IdRecovery recovery = new IdRecovery( storeDir, IndexTypeEnum.Node, nodeIndex1 );
+        assertEquals( 2, recovery.recover() );
+        assertEquals( 4, recovery.getDamagedCount() );
+        assertEquals( 1, recovery.getAmbiguousCount() );
+        assertEquals( 1, recovery.getUnmatchedCount() );
+
+        IndexRepair repair = new IndexRepair( paths.forNode( nodeIndex1 ) );
+        repair.scan();
+        assertEquals( "unrecoverable documents should be left", 2, repair.getDamagedCount() );
+
+        db.start();
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            assertEquals( "missing index value", nodes[i], db.getUniqueFromNodeIndex( nodeIndex1, "key", "value" + i )
+                    .getId() );
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void testRecoveryDoesNotDuplicateIds() throws Exception
+    {
+        File storeDir = TargetDirectory.forTest( getClass() ).directory( "testRecoveryDoesNotDuplicateIds", true );
+        GraphDatabaseHandler db = new GraphDatabaseHandler( storeDir );
+
+        String nodeIndex1 = "node1";
+        db.createNodeIndex( nodeIndex1 );
+        db.createAndIndexNode( nodeIndex1, "key1", "value1", true );
+        db.shutdown();
+
+        // a damaged copy of the live document of node1
+        IndexPaths paths = IndexPaths.fromRoot( storeDir );
+        IndexWriter writer = new IndexWriter( FSDirectory.open( paths.forNode( nodeIndex1 ) ), new IndexWriterConfig(
+                Version.LUCENE_35, new WhitespaceAnalyzer( Version.LUCENE_35 ) ) );
+        Document damaged = new Document();
+        damaged.add( new Field( "key1", "value1", Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+        writer.addDocument( damaged );
+        writer.close();
+
+        IdRecovery recovery = new IdRecovery( storeDir, IndexTypeEnum.Node, nodeIndex1 );
+        assertEquals( 0, recovery.recover() );
+        assertEquals( 1, recovery.getAmbiguousCount() );
+
+        DuplicateDetector detector = new DuplicateDetector( paths.forNode( nodeIndex1 ) );
+        detector.scan();
+        assertEquals( 0, detector.getDuplicatedIdCount() );
+    }
 }
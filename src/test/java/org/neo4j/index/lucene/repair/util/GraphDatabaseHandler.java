@@ -26,6 +26,7 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.lucene.ValueContext;
 import org.neo4j.kernel.AbstractGraphDatabase;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 
@@ -131,6 +132,80 @@ public class GraphDatabaseHandler
         }
     }
 
+    /**
+     * Deletes the node from the store but leaves any index entries for it
+     * in place.
+     */
+    public void deleteNodeOnly( long nodeId )
+    {
+        Transaction tx = db.beginTx();
+        try
+        {
+            db.getNodeById( nodeId ).delete();
+            tx.success();
+        }
+        catch ( Throwable t )
+        {
+            tx.failure();
+            throw new RuntimeException( t );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Adds an existing node to an index under another key.
+     */
+    public void indexNode( String nodeIndex, long nodeId, String key, Object value, boolean addAsProperty )
+    {
+        Transaction tx = db.beginTx();
+        try
+        {
+            Node n = db.getNodeById( nodeId );
+            db.index().forNodes( nodeIndex ).add( n, key, value );
+            if ( addAsProperty )
+            {
+                n.setProperty( key, value instanceof ValueContext ? ( (ValueContext) value ).getCorrectValue()
+                        : value );
+            }
+            tx.success();
+        }
+        catch ( Throwable t )
+        {
+            tx.failure();
+            throw new RuntimeException( t );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Sets a property of the node without touching any index, so that an
+     * index entry for the old value goes stale.
+     */
+    public void setNodePropertyOnly( long nodeId, String key, Object value )
+    {
+        Transaction tx = db.beginTx();
+        try
+        {
+            db.getNodeById( nodeId ).setProperty( key, value );
+            tx.success();
+        }
+        catch ( Throwable t )
+        {
+            tx.failure();
+            throw new RuntimeException( t );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
     public Node getUniqueFromNodeIndex( String nodeIndex, String key, String value )
     {
         return db.index().forNodes( nodeIndex ).get( key, value ).getSingle();